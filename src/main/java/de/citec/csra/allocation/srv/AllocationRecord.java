@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import rst.timing.IntervalType.Interval;
+
+/**
+ * Mutable internal representation of an allocation.
+ *
+ * The arbitration changes state, slot and reasons of an allocation many times
+ * while handling a single request. Instead of building a new message for
+ * every change, these properties are kept in mutable fields. Reasons are
+ * counted per allocation and only rendered into the description of the
+ * message. All other properties are taken from the last message received
+ * from the client (the template). A {@link ResourceAllocation} message is
+ * only built when it is requested via {@link #toMessage()} and cached until
+ * the next change.
+ *
+ * Modifications are serialized by the resource locks of the registry, reads
+ * do not lock and always see a consistent version of the record.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class AllocationRecord {
+
+	private final String id;
+	private final String token;
+	private final StampedLock lock = new StampedLock();
+	private ResourceAllocation template;
+	private volatile State state;
+	private volatile Interval slot;
+	private final String description;
+	private final Map<String, Integer> reasons = new LinkedHashMap<>();
+	private long version;
+	private final static AtomicLong VERSIONS = new AtomicLong();
+	private volatile Snapshot published;
+
+	/**
+	 * A message representing a version of the record.
+	 */
+	static class Snapshot {
+
+		final long version;
+		final ResourceAllocation message;
+
+		Snapshot(long version, ResourceAllocation message) {
+			this.version = version;
+			this.message = message;
+		}
+	}
+
+	AllocationRecord(ResourceAllocation message) {
+		this.id = message.getId();
+		this.token = Allocations.getToken(this.id);
+		this.description = message.hasDescription() ? message.getDescription() : null;
+		replace(message);
+	}
+
+	/**
+	 * Creates an independent copy of the given record, e.g. for simulating
+	 * changes without affecting the original.
+	 *
+	 * @param other the record to copy
+	 */
+	AllocationRecord(AllocationRecord other) {
+		this.id = other.id;
+		this.token = other.token;
+		this.description = other.description;
+		long stamp = other.lock.readLock();
+		try {
+			this.template = other.template;
+			this.state = other.state;
+			this.slot = other.slot;
+			this.reasons.putAll(other.reasons);
+		} finally {
+			other.lock.unlockRead(stamp);
+		}
+	}
+
+	String getId() {
+		return this.id;
+	}
+
+	/**
+	 * Returns the ticket token parsed from the id, see
+	 * {@link Allocations#getToken(String)}.
+	 *
+	 * @return the token or <code>null</code> if the id does not contain one
+	 */
+	String getToken() {
+		return this.token;
+	}
+
+	/**
+	 * Returns the last message received from the client. Its state, slot and
+	 * description may be outdated.
+	 *
+	 * @return the client message
+	 */
+	ResourceAllocation getTemplate() {
+		long stamp = this.lock.tryOptimisticRead();
+		ResourceAllocation t = this.template;
+		if (!this.lock.validate(stamp)) {
+			stamp = this.lock.readLock();
+			try {
+				t = this.template;
+			} finally {
+				this.lock.unlockRead(stamp);
+			}
+		}
+		return t;
+	}
+
+	List<String> getResources() {
+		return getTemplate().getResourceIdsList();
+	}
+
+	Priority getPriority() {
+		return getTemplate().getPriority();
+	}
+
+	Initiator getInitiator() {
+		return getTemplate().getInitiator();
+	}
+
+	State getState() {
+		return this.state;
+	}
+
+	Interval getSlot() {
+		return this.slot;
+	}
+
+	void setState(State state) {
+		long stamp = this.lock.writeLock();
+		try {
+			this.state = state;
+			this.version = VERSIONS.incrementAndGet();
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	void setSlot(Interval slot) {
+		long stamp = this.lock.writeLock();
+		try {
+			this.slot = slot;
+			this.version = VERSIONS.incrementAndGet();
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Counts another occurrence of the given reason for the last change of
+	 * this allocation.
+	 *
+	 * @param reason the reason
+	 */
+	void addReason(String reason) {
+		long stamp = this.lock.writeLock();
+		try {
+			this.reasons.merge(reason, 1, Integer::sum);
+			this.version = VERSIONS.incrementAndGet();
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Adopts all properties of a client message. The description of the
+	 * initial request and the counted reasons are kept, since clients echo
+	 * the published description including the rendered reasons.
+	 *
+	 * @param message the client message
+	 */
+	final void replace(ResourceAllocation message) {
+		long stamp = this.lock.writeLock();
+		try {
+			this.template = message;
+			this.state = message.getState();
+			this.slot = message.getSlot();
+			this.version = VERSIONS.incrementAndGet();
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Builds the message representing the current version of this record.
+	 * The message is cached until the record changes.
+	 *
+	 * @return the current message
+	 */
+	ResourceAllocation toMessage() {
+		return snapshot().message;
+	}
+
+	/**
+	 * Builds the message representing the current version of this record
+	 * together with its version. Versions are drawn from a global sequence on
+	 * every change, so they also increase across records that reuse an id.
+	 *
+	 * @return the current version of the record
+	 */
+	Snapshot snapshot() {
+		Snapshot p = this.published;
+		long stamp = this.lock.tryOptimisticRead();
+		long v = this.version;
+		if (p != null && p.version == v && this.lock.validate(stamp)) {
+			return p;
+		}
+
+		ResourceAllocation t;
+		State s;
+		Interval i;
+		String d;
+		stamp = this.lock.readLock();
+		try {
+			v = this.version;
+			t = this.template;
+			s = this.state;
+			i = this.slot;
+			d = renderDescription();
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+
+		ResourceAllocation.Builder builder = ResourceAllocation.newBuilder(t).setState(s).setSlot(i);
+		if (d != null) {
+			builder.setDescription(d);
+		} else {
+			builder.clearDescription();
+		}
+		Snapshot snapshot = new Snapshot(v, builder.build());
+		this.published = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Appends the counted reasons to the description, e.g.
+	 * <code>"description slot superseded[2] modification successful[1]"</code>.
+	 */
+	private String renderDescription() {
+		if (this.reasons.isEmpty()) {
+			return this.description;
+		}
+		StringBuilder rendered = new StringBuilder();
+		if (this.description != null) {
+			rendered.append(this.description);
+		}
+		for (Map.Entry<String, Integer> reason : this.reasons.entrySet()) {
+			if (rendered.length() > 0) {
+				rendered.append(' ');
+			}
+			rendered.append(reason.getKey()).append('[').append(reason.getValue()).append(']');
+		}
+		return rendered.toString();
+	}
+}
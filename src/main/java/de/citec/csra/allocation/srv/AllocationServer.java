@@ -17,7 +17,18 @@
 package de.citec.csra.allocation.srv;
 
 import static de.citec.csra.rst.util.StringRepresentation.shortString;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rsb.Factory;
@@ -28,6 +39,9 @@ import rsb.converter.ProtocolBufferConverter;
 import rsb.filter.OriginFilter;
 import rsb.util.QueueAdapter;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
 
 /**
  *
@@ -44,20 +58,106 @@ public class AllocationServer {
 	private final static Logger LOG = Logger.getLogger(AllocationServer.class.getName());
 	private final static String SCOPEVAR = "SCOPE_ALLOCATION";
 	private final static String FALLBACK = "/coordination/allocation/";
+	private final static String WORKERSVAR = "ALLOCATION_WORKERS";
+	private final static String CAPACITYVAR = "ALLOCATION_CAPACITY";
+	private final static int DEFAULT_CAPACITY = 1024;
+	private final static String REPORTVAR = "ALLOCATION_REPORT";
+	private final static long DEFAULT_REPORT = 60;
 
-	private static AllocationServer instance;
+	private final static Map<String, AllocationServer> INSTANCES = new HashMap<>();
 	private static String scope;
+	private final String shard;
 	private final Listener listener;
 	private final BlockingQueue<ResourceAllocation> queue;
+	private final Allocations allocations;
+	private final List<IntakeQueue> partitions = new ArrayList<>();
+	private final Map<String, Integer> routes = new ConcurrentHashMap<>();
+	private final Consumer<String> unroute = this.routes::remove;
+	private final AtomicLong shed = new AtomicLong();
+	private final ExecutorService workers;
 
-	private AllocationServer() throws InterruptedException, RSBException {
+	private AllocationServer(String shard) throws InterruptedException, RSBException {
 
 		QueueAdapter<ResourceAllocation> qa = new QueueAdapter<>();
 
-		this.listener = Factory.getInstance().createListener(getScope());
-		this.listener.addFilter(new OriginFilter(NotificationService.getInstance().getID(), true));
+		this.shard = shard;
+		this.allocations = Allocations.getInstance(shard);
+		this.listener = Factory.getInstance().createListener(shard);
+		this.listener.addFilter(new OriginFilter(NotificationService.getInstance(shard).getID(), true));
 		this.listener.addHandler(qa, true);
 		this.queue = qa.getQueue();
+
+		int n = getWorkers();
+		int capacity = getCapacity();
+		for (int i = 0; i < n; i++) {
+			this.partitions.add(new IntakeQueue(capacity));
+		}
+		this.workers = Executors.newFixedThreadPool(n);
+		this.allocations.addRemovalListener(this.unroute);
+
+		long period = getEnv(REPORTVAR, "report period", 0, DEFAULT_REPORT);
+		if (period > 0) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "report-" + shard);
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(this::report, period, period, SECONDS);
+		}
+	}
+
+	/**
+	 * Logs the lateness of slot transitions and the load of the intake. Runs
+	 * periodically as given by <code>$ALLOCATION_REPORT</code> in seconds,
+	 * <code>0</code> disables the report.
+	 */
+	void report() {
+		LOG.log(Level.INFO, "Allocation service at ''{0}'': begin lateness {1}, end lateness {2}, {3} queued, {4} shed.",
+				new Object[]{this.shard, this.allocations.getLateness(ALLOCATED), this.allocations.getLateness(RELEASED), getQueueDepth(), getShedCount()});
+	}
+
+	/**
+	 * Returns the number of worker threads that arbitrate incoming messages,
+	 * as given by <code>$ALLOCATION_WORKERS</code> or the number of
+	 * available processors.
+	 *
+	 * @return the number of workers
+	 */
+	private static int getWorkers() {
+		return (int) Math.min(Integer.MAX_VALUE, getEnv(WORKERSVAR, "number of workers", 1, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Returns the number of messages each worker queues before shedding
+	 * requests, as given by <code>$ALLOCATION_CAPACITY</code>.
+	 *
+	 * @return the capacity of a worker queue
+	 */
+	private static int getCapacity() {
+		return (int) Math.min(Integer.MAX_VALUE, getEnv(CAPACITYVAR, "queue capacity", 1, DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Returns the number of messages waiting for arbitration.
+	 *
+	 * @return the number of queued messages
+	 */
+	public int getQueueDepth() {
+		int depth = this.queue.size();
+		for (IntakeQueue partition : this.partitions) {
+			depth += partition.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the number of messages that have been rejected or dropped
+	 * without arbitration because the intake was overloaded.
+	 *
+	 * @return the number of shed messages
+	 */
+	public long getShedCount() {
+		return this.shed.get();
 	}
 
 	public static String getScope() {
@@ -72,20 +172,166 @@ public class AllocationServer {
 		return scope;
 	}
 
+	/**
+	 * Reads a numeric setting from an environment variable. Invalid values
+	 * are ignored with a warning, values below the minimum are raised to it.
+	 *
+	 * @param var the name of the environment variable
+	 * @param description the description of the setting for the warning
+	 * @param minimum the smallest valid value
+	 * @param fallback the value to use if the variable is missing or invalid
+	 * @return the value of the setting
+	 */
+	static long getEnv(String var, String description, long minimum, long fallback) {
+		if (System.getenv().containsKey(var)) {
+			try {
+				return Math.max(minimum, Long.parseLong(System.getenv(var)));
+			} catch (NumberFormatException ex) {
+				LOG.log(Level.WARNING, "ignoring invalid {0} ''{1}''", new String[]{description, System.getenv(var)});
+			}
+		}
+		return fallback;
+	}
+
 	public static AllocationServer getInstance() throws InterruptedException, RSBException {
+		return getInstance(getScope());
+	}
+
+	/**
+	 * Returns the server for the given scope. Each scope is served by an
+	 * independent shard with its own registry, notifiers and listener.
+	 *
+	 * @param scope the scope to listen at
+	 * @return the server for the scope
+	 * @throws InterruptedException
+	 * @throws RSBException
+	 */
+	public synchronized static AllocationServer getInstance(String scope) throws InterruptedException, RSBException {
+		AllocationServer instance = INSTANCES.get(scope);
 		if (instance == null) {
-			instance = new AllocationServer();
+			instance = new AllocationServer(scope);
+			INSTANCES.put(scope, instance);
 		}
 		return instance;
 	}
 
+	/**
+	 * Dispatches incoming messages to the workers until the listener is
+	 * deactivated. Messages are partitioned by the root of their first
+	 * resource, so that requests in unrelated resource subtrees are
+	 * arbitrated in parallel. All messages for the same allocation are
+	 * routed to the same worker and thus handled in order.
+	 *
+	 * @throws InterruptedException
+	 */
 	public void listen() throws InterruptedException {
-		LOG.log(Level.INFO, "Allocation service listening at ''{0}''.", this.listener.getScope());
-		Allocations.getInstance();
+		LOG.log(Level.INFO, "Allocation service listening at ''{0}'' with {1} workers.", new Object[]{this.listener.getScope(), this.partitions.size()});
+		for (int i = 0; i < this.partitions.size(); i++) {
+			int partition = i;
+			this.workers.submit(() -> work(partition));
+		}
 		while (this.listener.isActive()) {
 			ResourceAllocation incoming = this.queue.take();
 			LOG.log(Level.FINE, "Received client update ''{0}''.", shortString(incoming));
-			Allocations.getInstance().handle(incoming);
+			boolean known = this.routes.containsKey(incoming.getId()) || this.allocations.isAlive(incoming.getId());
+			int partition = this.routes.computeIfAbsent(incoming.getId(), id -> route(incoming));
+			ResourceAllocation refused = this.partitions.get(partition).put(incoming, known);
+			if (refused != null && known) {
+				drop(refused);
+			} else if (refused != null) {
+				shed(refused);
+			}
+		}
+	}
+
+	private void shed(ResourceAllocation refused) {
+		LOG.log(Level.WARNING, "Allocation request shed (service overloaded): {0}", shortString(refused));
+		this.shed.incrementAndGet();
+		if (!this.allocations.isAlive(refused.getId())) {
+			this.routes.remove(refused.getId());
+		}
+		AllocationRecord rejected = new AllocationRecord(refused);
+		rejected.setState(REJECTED);
+		rejected.addReason("service overloaded");
+		NotificationService.getInstance(this.shard).publish(rejected);
+	}
+
+	/**
+	 * Drops an update of a known allocation that did not fit into the queue
+	 * and informs the client about the current state of the allocation
+	 * instead, as with a failed modification.
+	 */
+	private void drop(ResourceAllocation refused) {
+		LOG.log(Level.WARNING, "Allocation update dropped (service overloaded): {0}", shortString(refused));
+		this.shed.incrementAndGet();
+		this.allocations.inform(refused);
+	}
+
+	private int route(ResourceAllocation incoming) {
+		if (incoming.getResourceIdsCount() == 0) {
+			return 0;
+		}
+		int stripe = ResourceLocks.getStripe(incoming.getResourceIds(0));
+		return stripe < 0 ? 0 : stripe % this.partitions.size();
+	}
+
+	/**
+	 * Drops modifications that are superseded by a later modification of the
+	 * same allocation within the batch. Only successive <code>SCHEDULED</code>
+	 * or <code>ALLOCATED</code> messages are merged, any other message for
+	 * the allocation in between is kept along with the messages around it.
+	 *
+	 * @param batch the received messages in order of arrival
+	 * @return the messages to handle in order of arrival
+	 */
+	static List<ResourceAllocation> coalesce(List<ResourceAllocation> batch) {
+		if (batch.size() < 2) {
+			return batch;
+		}
+		List<ResourceAllocation> coalesced = new ArrayList<>(batch);
+		Map<String, Integer> pending = new HashMap<>();
+		for (int i = 0; i < coalesced.size(); i++) {
+			ResourceAllocation incoming = coalesced.get(i);
+			switch (incoming.getState()) {
+				case SCHEDULED:
+				case ALLOCATED:
+					Integer previous = pending.put(incoming.getId(), i);
+					if (previous != null) {
+						LOG.log(Level.FINE, "Superseded client update ''{0}''.", shortString(coalesced.get(previous)));
+						coalesced.set(previous, null);
+					}
+					break;
+				default:
+					pending.remove(incoming.getId());
+					break;
+			}
+		}
+		coalesced.removeIf(a -> a == null);
+		return coalesced;
+	}
+
+	private void work(int partition) {
+		IntakeQueue partitionQueue = this.partitions.get(partition);
+		List<ResourceAllocation> batch = new ArrayList<>();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				partitionQueue.drainTo(batch);
+				try {
+					this.allocations.handle(coalesce(batch));
+				} catch (RuntimeException ex) {
+					LOG.log(Level.SEVERE, "Arbitration failed", ex);
+				}
+				// routes of registered allocations are removed along with them,
+				// this only covers messages that never became an allocation
+				for (ResourceAllocation handled : batch) {
+					if (!this.allocations.isAlive(handled.getId())) {
+						this.routes.remove(handled.getId(), partition);
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -99,6 +345,10 @@ public class AllocationServer {
 		if (this.listener.isActive()) {
 			this.listener.deactivate();
 		}
-		instance = null;
+		this.workers.shutdownNow();
+		this.allocations.removeRemovalListener(this.unroute);
+		synchronized (AllocationServer.class) {
+			INSTANCES.remove(this.shard, this);
+		}
 	}
 }
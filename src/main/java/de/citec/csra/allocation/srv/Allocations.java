@@ -17,13 +17,26 @@
 package de.citec.csra.allocation.srv;
 
 import de.citec.csra.rst.util.IntervalUtils;
-import static de.citec.csra.rst.util.IntervalUtils.currentTimeInMicros;
 import static de.citec.csra.rst.util.StringRepresentation.shortString;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -32,233 +45,696 @@ import java.util.stream.Collectors;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.HUMAN;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.FIRST;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.MAXIMUM;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
 import rst.timing.IntervalType.Interval;
+import rst.timing.TimestampType.Timestamp;
 
 /**
+ * Registry of all active allocations that arbitrates incoming requests.
+ *
+ * Instead of a single monitor, arbitration is protected by
+ * {@link ResourceLocks}: {@link #handle(ResourceAllocation)} locks all
+ * resource subtrees a request may touch, while modifications by id only lock
+ * the subtrees of that allocation. Internal methods assume that the caller
+ * holds the respective locks. Reading accessors do not lock at all, so that
+ * notifiers polling the state of their allocation never stall arbitration.
+ * Independent groups of displaced allocations are re-fitted on a fork-join
+ * pool on behalf of the thread holding the locks.
  *
  * @author Patrick Holthaus
  * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
  */
 public class Allocations {
 
-	private static Allocations instance;
-	private final Map<String, ResourceAllocation> allocations;
+	private final static Map<String, Allocations> INSTANCES = new HashMap<>();
+	private final Map<String, AllocationRecord> allocations;
+	private final ResourceIndex index;
+	private final ResourceLocks locks;
 	private final NotificationService notifications;
+	private volatile Clock clock;
+	private final List<Consumer<String>> removals = new CopyOnWriteArrayList<>();
+	private Map<String, AllocationRecord> retired;
+	private final Map<State, LatenessHistogram> lateness = new EnumMap<>(State.class);
+	private final static Priority[] PRIORITIES = Priority.values();
+	private final static ForkJoinPool REFIT = ForkJoinPool.commonPool();
+	private final static String PRECISEVAR = "ALLOCATION_PRECISE_TIMING";
 	private final static Pattern TICKET = Pattern.compile("^(.+)#(.+)$");
+	private final static Comparator<AllocationRecord> DISPLACEMENT_ORDER
+			= Comparator.comparing(AllocationRecord::getPriority).reversed()
+					.thenComparingLong(r -> r.getSlot().getEnd().getTime());
 
 	private final static Logger LOG = Logger.getLogger(Allocations.class.getName());
 
-	private Allocations() {
+	private Allocations(String scope) {
+		this(NotificationService.getInstance(scope));
+		this.clock = Boolean.parseBoolean(System.getenv(PRECISEVAR)) ? new PreciseClock() : new SystemClock();
+		this.notifications.bind(this);
+	}
+
+	/**
+	 * Creates an empty registry.
+	 *
+	 * @param notifications the service to notify clients with or
+	 * <code>null</code> if changes should not be published
+	 */
+	private Allocations(NotificationService notifications) {
 		this.allocations = new ConcurrentHashMap<>();
-		this.notifications = NotificationService.getInstance();
+		this.index = new ResourceIndex();
+		this.locks = new ResourceLocks();
+		this.notifications = notifications;
+		this.lateness.put(ALLOCATED, new LatenessHistogram());
+		this.lateness.put(RELEASED, new LatenessHistogram());
+	}
+
+	/**
+	 * Returns the registry for the default scope, see
+	 * {@link AllocationServer#getScope()}.
+	 *
+	 * @return the default registry
+	 */
+	public static Allocations getInstance() {
+		return getInstance(AllocationServer.getScope());
 	}
 
-	synchronized public static Allocations getInstance() {
+	/**
+	 * Returns the registry for the given scope. Registries for different
+	 * scopes are completely independent of each other.
+	 *
+	 * @param scope the scope of the allocation service
+	 * @return the registry for the scope
+	 */
+	synchronized public static Allocations getInstance(String scope) {
+		Allocations instance = INSTANCES.get(scope);
 		if (instance == null) {
-			instance = new Allocations();
+			instance = new Allocations(scope);
+			INSTANCES.put(scope, instance);
 		}
 		return instance;
 	}
 
-	boolean isAlive(String id) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					ResourceAllocation a = this.allocations.get(id);
-					State s = a.getState();
-					switch (s) {
-						case REJECTED:
-						case CANCELLED:
-						case ABORTED:
-						case RELEASED:
-							return false;
-						case ALLOCATED:
-						case REQUESTED:
-						case SCHEDULED:
-						default:
-							return true;
+	/**
+	 * Returns the clock that arbitration and notifiers of this registry
+	 * refer to.
+	 *
+	 * @return the clock
+	 */
+	public Clock getClock() {
+		return this.clock;
+	}
+
+	/**
+	 * Returns the histogram of the lateness of transitions into the given
+	 * state, i.e. of the begin (<code>ALLOCATED</code>) or the end
+	 * (<code>RELEASED</code>) of slots. Publishing is not included, see
+	 * {@link LatenessHistogram}.
+	 *
+	 * @param state the state
+	 * @return the histogram or <code>null</code> if transitions into the
+	 * state are not timed
+	 */
+	public LatenessHistogram getLateness(State state) {
+		return this.lateness.get(state);
+	}
+
+	/**
+	 * Replaces the clock of this registry, e.g. with a {@link VirtualClock}
+	 * for fast-forward simulations. Should be set before any allocation is
+	 * handled.
+	 *
+	 * @param clock the clock
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Acquires the locks for all resources held by the allocation with the
+	 * given id.
+	 *
+	 * @param id the allocation id
+	 * @return the acquired locks, to be released by the caller
+	 */
+	private ResourceLocks.Held lock(String id) {
+		while (true) {
+			AllocationRecord current = this.allocations.get(id);
+			List<String> resources = (current != null) ? current.getResources() : Collections.emptyList();
+			ResourceLocks.Held held = this.locks.acquire(resources);
+			current = this.allocations.get(id);
+			if (current == null || held.covers(current.getResources())) {
+				return held;
+			}
+			held.release();
+		}
+	}
+
+	/**
+	 * Acquires the locks for all resources that may be touched while
+	 * arbitrating the given allocations: the requested resources, the
+	 * resources currently held under the same ids, and the resources of all
+	 * allocations that are in conflict with the requests and may therefore be
+	 * updated as well.
+	 *
+	 * @param incoming the incoming allocations
+	 * @return the acquired locks, to be released by the caller
+	 */
+	private ResourceLocks.Held lock(Collection<ResourceAllocation> incoming) {
+		Set<String> required = new HashSet<>();
+		for (ResourceAllocation allocation : incoming) {
+			required.addAll(allocation.getResourceIdsList());
+		}
+		while (true) {
+			ResourceLocks.Held held = this.locks.acquire(required);
+			Set<String> touched = new HashSet<>();
+			for (ResourceAllocation allocation : incoming) {
+				touched.addAll(allocation.getResourceIdsList());
+				AllocationRecord current = this.allocations.get(allocation.getId());
+				if (current != null) {
+					touched.addAll(current.getResources());
+				}
+				for (String id : this.index.getConflicting(allocation.getResourceIdsList())) {
+					AllocationRecord stored = this.allocations.get(id);
+					if (stored != null) {
+						touched.addAll(stored.getResources());
 					}
-				} else {
-					LOG.log(Level.FINEST, "attempt to check alive state for allocation ''{0}'' ignored, no such allocation available", id);
 				}
-			return false;
+			}
+			if (held.covers(touched)) {
+				return held;
+			}
+			held.release();
+			required = touched;
+		}
+	}
+
+	/*
+	 * The accessors below do not lock. Allocation records can be read
+	 * consistently at any time, see AllocationRecord.
+	 */
+	boolean isAlive(String id) {
+		AllocationRecord a = this.allocations.get(id);
+		if (a != null) {
+			State s = a.getState();
+			switch (s) {
+				case REJECTED:
+				case CANCELLED:
+				case ABORTED:
+				case RELEASED:
+					return false;
+				case ALLOCATED:
+				case REQUESTED:
+				case SCHEDULED:
+				default:
+					return true;
+			}
+		} else {
+			LOG.log(Level.FINEST, "attempt to check alive state for allocation ''{0}'' ignored, no such allocation available", id);
 		}
+		return false;
 	}
 
 	State getState(String id) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					return this.allocations.get(id).getState();
-				} else {
-					return null;
-				}
+		AllocationRecord a = this.allocations.get(id);
+		if (a != null) {
+			return a.getState();
+		} else {
+			return null;
 		}
 	}
 
 	Interval getSlot(String id) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					return this.allocations.get(id).getSlot();
-				} else {
-					return null;
-				}
+		AllocationRecord a = this.allocations.get(id);
+		if (a != null) {
+			return a.getSlot();
+		} else {
+			return null;
 		}
 	}
 
+	/**
+	 * Builds the current message of an allocation, e.g. for publishing it.
+	 *
+	 * @param id the allocation id
+	 * @return the current message or <code>null</code> if there is no such
+	 * allocation
+	 */
 	ResourceAllocation get(String id) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					ResourceAllocation a = this.allocations.get(id);
-					return a;
-				} else {
-					LOG.log(Level.FINEST, "attempt to query for allocation ''{0}'' ignored, no such allocation available", id);
-				}
-				return null;
+		AllocationRecord a = this.allocations.get(id);
+		if (a == null) {
+			LOG.log(Level.FINEST, "attempt to query for allocation ''{0}'' ignored, no such allocation available", id);
+			return null;
 		}
+		return a.toMessage();
 	}
 
-	ResourceAllocation setState(String id, State newState) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					return this.allocations.put(id,
-							ResourceAllocation.
-							newBuilder(this.allocations.get(id)).
-							setState(newState).
-							build());
-				} else {
-					LOG.log(Level.WARNING, "attempt to modify allocation ''{0}'' ignored, no such allocation available", id);
-					return null;
-				}
+	/**
+	 * Builds the current messages of all registered allocations.
+	 *
+	 * @return the current messages
+	 */
+	public List<ResourceAllocation> getAll() {
+		return this.allocations.values().stream().map(AllocationRecord::toMessage).collect(Collectors.toList());
+	}
+
+	/**
+	 * Builds the current message of an allocation along with its version.
+	 *
+	 * @param id the allocation id
+	 * @return the current version or <code>null</code> if there is no such
+	 * allocation
+	 */
+	AllocationRecord.Snapshot snapshot(String id) {
+		AllocationRecord a = this.allocations.get(id);
+		return a != null ? a.snapshot() : null;
+	}
+
+	void setReason(AllocationRecord current, String reason) {
+		current.addReason(reason);
+	}
+
+	private void notifyInit(String id) {
+		if (this.notifications != null) {
+			this.notifications.init(id);
 		}
 	}
 
-	ResourceAllocation setReason(String id, String reason) {
-		synchronized (this.allocations) {
-				if (this.allocations.containsKey(id)) {
-					ResourceAllocation current = this.allocations.get(id);
-
-					String newDescription;
-					if (current.hasDescription()) {
-						String desc = current.getDescription();
-						Pattern p = Pattern.compile(reason + "\\[([0-9]+)\\]");
-						Matcher m = p.matcher(desc);
-						if (m.find()) {
-							long n = Long.valueOf(m.group(1));
-							newDescription = m.replaceFirst(reason + "[" + String.valueOf(n + 1) + "]");
-						} else {
-							newDescription = current.getDescription() + " " + reason + "[1]";
-						}
-					} else {
-						newDescription = reason + "[1]";
-					}
+	private void notifyUpdate(String id) {
+		if (this.notifications != null) {
+			this.notifications.update(id, true);
+		}
+	}
 
-					return this.allocations.put(id,
-							ResourceAllocation.
-							newBuilder(current).
-							setDescription(newDescription).
-							build());
-				} else {
-					LOG.log(Level.WARNING, "attempt to modify allocation ''{0}'' ignored, no such allocation available", id);
-					return null;
-				}
+	private void store(AllocationRecord record) {
+		Interval slot = record.getSlot();
+		this.index.add(record.getId(), record.getResources(), record.getPriority(), slot.getBegin().getTime(), slot.getEnd().getTime());
+		this.allocations.put(record.getId(), record);
+	}
+
+	void remove(String id) {
+		ResourceLocks.Held held = lock(id);
+		try {
+			this.index.remove(id);
+			AllocationRecord removed = this.allocations.remove(id);
+			if (this.retired != null && removed != null) {
+				this.retired.put(id, removed);
+			}
+		} finally {
+			held.release();
 		}
+		if (this.notifications != null) {
+			this.notifications.discard(id);
+		}
+		for (Consumer<String> listener : this.removals) {
+			listener.accept(id);
+		}
+	}
+
+	/**
+	 * Registers a listener that is informed about the id of every allocation
+	 * that is removed from this registry, whichever way it terminated.
+	 *
+	 * @param listener the listener
+	 */
+	void addRemovalListener(Consumer<String> listener) {
+		this.removals.add(listener);
 	}
 
-	ResourceAllocation remove(String id) {
-		synchronized (this.allocations) {
-				return this.allocations.remove(id);
+	void removeRemovalListener(Consumer<String> listener) {
+		this.removals.remove(listener);
+	}
+
+	/**
+	 * Moves an allocation on in its lifecycle if it is still in the expected
+	 * state. Transitions to <code>ALLOCATED</code> and <code>RELEASED</code>
+	 * only take place once the clock has reached the begin or the end of the
+	 * slot respectively, so that a timer that was about to fire while the
+	 * slot has been modified does not take effect.
+	 *
+	 * @param id the allocation id
+	 * @param expected the current state of the allocation
+	 * @param next the new state of the allocation
+	 * @return whether the state has been changed
+	 */
+	boolean advance(String id, State expected, State next) {
+		ResourceLocks.Held held = lock(id);
+		try {
+			AllocationRecord record = this.allocations.get(id);
+			if (record == null || record.getState() != expected) {
+				return false;
+			}
+			long now = this.clock.currentTimeInMicros();
+			long due;
+			switch (next) {
+				case ALLOCATED:
+					due = record.getSlot().getBegin().getTime();
+					break;
+				case RELEASED:
+					due = record.getSlot().getEnd().getTime();
+					break;
+				default:
+					due = now;
+					break;
+			}
+			if (due > now) {
+				return false;
+			}
+			record.setState(next);
+			LatenessHistogram histogram = this.lateness.get(next);
+			if (histogram != null) {
+				histogram.record(now - due);
+			}
+			return true;
+		} finally {
+			held.release();
 		}
 	}
 
 	public boolean handle(ResourceAllocation incoming) {
-		synchronized (this.allocations) {
-				ResourceAllocation current = get(incoming.getId());
-				State currentState = (current != null) ? current.getState() : null;
-				State incomingState = incoming.getState();
-				String incomingStr = shortString(incoming);
-				String currentStr = shortString(incoming);
-				switch (incomingState) {
-					case REQUESTED:
-						if (currentState == null) {
-							LOG.log(Level.INFO,
-									"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
-									new Object[]{currentState, incomingState, incomingStr});
-							return request(incoming);
-						} else {
-							LOG.log(Level.INFO,
-									"Informing client about current allocation with id ''{0}'' ({1})",
-									new Object[]{incoming.getId(), currentStr});
-							return inform(incoming);
-						}
-					case CANCELLED:
-						if (currentState != null && currentState.equals(SCHEDULED)) {
-							LOG.log(Level.INFO,
-									"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
-									new Object[]{currentState, incomingState, incomingStr});
-							return finalize(incoming, "client request");
-						}
-						break;
-					case ABORTED:
-					case RELEASED:
-						if (currentState != null && currentState.equals(ALLOCATED)) {
-							LOG.log(Level.INFO,
-									"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
-									new Object[]{currentState, incomingState, incomingStr});
-							return finalize(incoming, "client request");
-						}
-						break;
-					case ALLOCATED:
-					case SCHEDULED:
-						if (currentState != null && currentState.equals(incoming.getState())) {
-							LOG.log(Level.INFO,
-									"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
-									new Object[]{currentState, incomingState, incomingStr});
-							return modify(incoming);
-						}
-						break;
-					case REJECTED:
-					default:
-						break;
+		return handle(Collections.singletonList(incoming)).get(0);
+	}
+
+	/**
+	 * Arbitrates a batch of client updates at once.
+	 *
+	 * All updates are handled while holding the locks for the union of their
+	 * resources. Allocations displaced by the updates are re-fitted in a
+	 * single cascade once the updates have been applied. An update that
+	 * shares resources with an allocation the pending cascade may displace
+	 * runs the cascade first, so that it is fitted against the outcome, just
+	 * as if the updates were handled one by one. The scheduled or modified
+	 * allocations themselves are published after their cascade. All messages
+	 * published while handling the batch form a single arbitration step.
+	 *
+	 * @param batch the client updates in order of arrival
+	 * @return for each update, whether it has been successful
+	 */
+	public List<Boolean> handle(List<ResourceAllocation> batch) {
+		ResourceLocks.Held held = lock(batch);
+		if (this.notifications != null) {
+			this.notifications.beginStep();
+		}
+		try {
+			Map<String, AllocationRecord> scheduled = new LinkedHashMap<>();
+			Set<String> displaceable = new HashSet<>();
+			List<Boolean> outcomes = new ArrayList<>(batch.size());
+			for (ResourceAllocation incoming : batch) {
+				if (conflicts(incoming.getResourceIdsList(), displaceable)) {
+					cascade(scheduled);
+					displaceable.clear();
 				}
-				LOG.log(Level.WARNING,
-						"Illegal client-requested state transition ''{0}'' -> ''{1}'', ignoring ({2})",
-						new Object[]{currentState, incomingState, incomingStr});
-				return false;
+				outcomes.add(dispatch(incoming, scheduled));
+				AllocationRecord record = scheduled.get(incoming.getId());
+				if (record != null) {
+					for (AllocationRecord affected : getAffected(record)) {
+						displaceable.addAll(affected.getResources());
+					}
+				}
+			}
+			cascade(scheduled);
+			return outcomes;
+		} finally {
+			if (this.notifications != null) {
+				this.notifications.endStep();
+			}
+			held.release();
 		}
 	}
 
-	boolean request(ResourceAllocation allocation) {
-		synchronized (this.allocations) {
+	/**
+	 * Re-fits the allocations displaced by the given scheduled or modified
+	 * allocations and publishes all of them.
+	 *
+	 * @param scheduled the allocations to publish, cleared afterwards
+	 */
+	private void cascade(Map<String, AllocationRecord> scheduled) {
+		if (scheduled.isEmpty()) {
+			return;
+		}
+		updateAffected(scheduled.values(), "slot superseded");
+		for (AllocationRecord record : scheduled.values()) {
+			if (this.allocations.get(record.getId()) == record) {
+				notifyUpdate(record.getId());
+			}
+		}
+		scheduled.clear();
+	}
 
-				this.allocations.put(allocation.getId(), allocation);
-				this.notifications.init(allocation.getId());
+	/**
+	 * Checks whether any of the given resources is a prefix of any of the
+	 * other resources or vice versa.
+	 */
+	private static boolean conflicts(Collection<String> resources, Collection<String> others) {
+		for (String resource : resources) {
+			for (String other : others) {
+				if (resource.startsWith(other) || other.startsWith(resource)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 
-				Interval match = findSlot(allocation, false);
-				if (match == null) {
-					LOG.log(Level.FINER, "Allocation request failed (slot not available): {0}", shortString(allocation));
-					reject(allocation, "slot not available");
-					return false;
-				} else if (match.getEnd().getTime() < currentTimeInMicros()) {
-					LOG.log(Level.FINER, "Allocation request failed (slot expired): {0}", shortString(allocation));
-					release(allocation, "slot expired");
-					return false;
+	/**
+	 * Simulates the arbitration of the given allocation without affecting
+	 * the live registry. The allocation and all allocations that may take
+	 * part in the resulting cascade are copied into a separate registry,
+	 * where the request or modification is handled as usual but nothing is
+	 * published. Simulations do not take the locks of the live registry and
+	 * may run concurrently with the arbitration. Each copied allocation is
+	 * consistent in itself, but the copies may stem from different points in
+	 * time if the live registry changes during the simulation.
+	 *
+	 * @param probe the prospective request or modification
+	 * @return the outcome of the simulation
+	 */
+	public Simulation simulate(ResourceAllocation probe) {
+		Map<String, AllocationRecord> involved = new LinkedHashMap<>();
+		AllocationRecord own = this.allocations.get(probe.getId());
+		if (own != null) {
+			involved.put(own.getId(), own);
+		}
+		Set<String> resources = new HashSet<>(probe.getResourceIdsList());
+		if (own != null) {
+			resources.addAll(own.getResources());
+		}
+		/*
+		 * The cascade re-fits the allocations conflicting with the probe
+		 * against their own blockers, so two levels of conflicts suffice.
+		 */
+		for (int level = 0; level < 2; level++) {
+			Set<String> next = new HashSet<>();
+			for (String id : this.index.getConflicting(new ArrayList<>(resources))) {
+				AllocationRecord record = this.allocations.get(id);
+				if (record != null && !involved.containsKey(id)) {
+					involved.put(id, record);
+					next.addAll(record.getResources());
+				}
+			}
+			resources = next;
+		}
+
+		Allocations sandbox = new Allocations((NotificationService) null);
+		sandbox.clock = this.clock;
+		sandbox.retired = new HashMap<>();
+		Map<String, AllocationRecord> copies = new LinkedHashMap<>();
+		for (AllocationRecord record : involved.values()) {
+			AllocationRecord copy = new AllocationRecord(record);
+			sandbox.store(copy);
+			copies.put(copy.getId(), copy);
+		}
+		sandbox.handle(probe);
+
+		AllocationRecord result = sandbox.allocations.get(probe.getId());
+		if (result == null) {
+			result = sandbox.retired.get(probe.getId());
+		}
+		Simulation simulation = (result != null && result.getState() != REJECTED)
+				? new Simulation(result.getState(), result.getSlot())
+				: new Simulation(REJECTED, null);
+		for (AllocationRecord copy : copies.values()) {
+			if (copy.getId().equals(probe.getId())) {
+				continue;
+			}
+			AllocationRecord original = involved.get(copy.getId());
+			if (copy.getState() != original.getState()) {
+				simulation.terminated.put(copy.getId(), copy.getState());
+			} else if (!copy.getSlot().equals(original.getSlot())) {
+				simulation.shifted.put(copy.getId(), copy.getSlot());
+			}
+		}
+		return simulation;
+	}
+
+	/**
+	 * Queries the earliest slot of the given duration in which the given
+	 * resources are available for an allocation with the given priority. The
+	 * query does not create an allocation, it merely computes the slot that a
+	 * request with policy {@link Policy#FIRST} would currently be scheduled
+	 * for.
+	 *
+	 * @param resources the resources to query
+	 * @param priority the priority of the prospective allocation
+	 * @param duration the duration of the slot in microseconds
+	 * @param window the interval in which the slot must fit
+	 * @return the earliest available slot or <code>null</code> if there is no
+	 * such slot within the window
+	 */
+	public Interval findEarliest(List<String> resources, Priority priority, long duration, Interval window) {
+		if (duration > window.getEnd().getTime() - window.getBegin().getTime()) {
+			return null;
+		}
+		Interval match = query(probe(resources, priority, FIRST, duration, window));
+		if (match == null || match.getEnd().getTime() - match.getBegin().getTime() < duration) {
+			return null;
+		}
+		return match;
+	}
+
+	/**
+	 * Queries the largest interval of at most the given duration in which the
+	 * given resources are available for an allocation with the given
+	 * priority, see {@link #findEarliest(List, Priority, long, Interval)}.
+	 *
+	 * @param resources the resources to query
+	 * @param priority the priority of the prospective allocation
+	 * @param duration the maximal duration of the slot in microseconds
+	 * @param window the interval in which the slot must fit
+	 * @return the maximal available slot or <code>null</code> if there is no
+	 * such slot within the window
+	 */
+	public Interval findMaximal(List<String> resources, Priority priority, long duration, Interval window) {
+		long length = window.getEnd().getTime() - window.getBegin().getTime();
+		return query(probe(resources, priority, MAXIMUM, Math.min(duration, length), window));
+	}
+
+	/**
+	 * Computes the slot that the given allocation would currently be
+	 * scheduled for if it was requested, without storing or publishing it.
+	 * Queries do not lock and may run concurrently with the arbitration.
+	 *
+	 * @param probe the prospective allocation
+	 * @return the matching slot or <code>null</code> if the allocation would
+	 * be rejected
+	 */
+	public Interval query(ResourceAllocation probe) {
+		Interval match = findSlot(probe, REQUESTED, probe.getSlot(), false);
+		if (match == null || match.getEnd().getTime() < this.clock.currentTimeInMicros()) {
+			return null;
+		}
+		return match;
+	}
+
+	private ResourceAllocation probe(List<String> resources, Priority priority, Policy policy, long duration, Interval window) {
+		long begin = window.getBegin().getTime();
+		Interval slot = Interval.newBuilder()
+				.setBegin(Timestamp.newBuilder().setTime(begin).build())
+				.setEnd(Timestamp.newBuilder().setTime(begin + duration).build())
+				.build();
+		return ResourceAllocation.newBuilder()
+				.setId("")
+				.setState(REQUESTED)
+				.setPriority(priority)
+				.setInitiator(SYSTEM)
+				.setPolicy(policy)
+				.setSlot(slot)
+				.setConstraints(window)
+				.addAllResourceIds(resources)
+				.build();
+	}
+
+	/**
+	 * Performs the state transition requested by a single client update.
+	 *
+	 * @param incoming the client update
+	 * @param scheduled collects the allocations that have been scheduled or
+	 * modified and still need to be published
+	 * @return whether the update has been successful
+	 */
+	private boolean dispatch(ResourceAllocation incoming, Map<String, AllocationRecord> scheduled) {
+		AllocationRecord current = this.allocations.get(incoming.getId());
+		State currentState = (current != null) ? current.getState() : null;
+		State incomingState = incoming.getState();
+		String incomingStr = shortString(incoming);
+		String currentStr = shortString(incoming);
+		switch (incomingState) {
+			case REQUESTED:
+				if (currentState == null) {
+					LOG.log(Level.INFO,
+							"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
+							new Object[]{currentState, incomingState, incomingStr});
+					return request(incoming, scheduled);
 				} else {
-					allocation = ResourceAllocation.newBuilder(allocation).setSlot(match).build();
-					LOG.log(Level.FINER, "Allocation request successful: {0}", shortString(allocation));
-					schedule(allocation);
-					return true;
+					LOG.log(Level.INFO,
+							"Informing client about current allocation with id ''{0}'' ({1})",
+							new Object[]{incoming.getId(), currentStr});
+					return inform(incoming);
+				}
+			case CANCELLED:
+				if (currentState != null && currentState.equals(SCHEDULED)) {
+					LOG.log(Level.INFO,
+							"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
+							new Object[]{currentState, incomingState, incomingStr});
+					return finalize(incoming, "client request");
+				}
+				break;
+			case ABORTED:
+			case RELEASED:
+				if (currentState != null && currentState.equals(ALLOCATED)) {
+					LOG.log(Level.INFO,
+							"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
+							new Object[]{currentState, incomingState, incomingStr});
+					return finalize(incoming, "client request");
 				}
+				break;
+			case ALLOCATED:
+			case SCHEDULED:
+				if (currentState != null && currentState.equals(incoming.getState())) {
+					LOG.log(Level.INFO,
+							"Performing client-requested state transition ''{0}'' -> ''{1}'' ({2})",
+							new Object[]{currentState, incomingState, incomingStr});
+					return modify(incoming, scheduled);
+				}
+				break;
+			case REJECTED:
+			default:
+				break;
 		}
+		LOG.log(Level.WARNING,
+				"Illegal client-requested state transition ''{0}'' -> ''{1}'', ignoring ({2})",
+				new Object[]{currentState, incomingState, incomingStr});
+		return false;
 	}
 
-	boolean inform(ResourceAllocation allocation) {
-		synchronized (this.allocations) {
-				this.notifications.update(allocation.getId(), true);
-				return true;
+	boolean request(ResourceAllocation allocation, Map<String, AllocationRecord> scheduled) {
+		AllocationRecord record = new AllocationRecord(allocation);
+		store(record);
+		notifyInit(allocation.getId());
+
+		Interval match = findSlot(allocation, false);
+		if (match == null) {
+			LOG.log(Level.FINER, "Allocation request failed (slot not available): {0}", shortString(allocation));
+			reject(record, "slot not available");
+			return false;
+		} else if (match.getEnd().getTime() < this.clock.currentTimeInMicros()) {
+			LOG.log(Level.FINER, "Allocation request failed (slot expired): {0}", shortString(allocation));
+			release(record, "slot expired");
+			return false;
+		} else {
+			LOG.log(Level.FINER, "Allocation request successful: {0}", shortString(allocation));
+			schedule(record, match, scheduled);
+			return true;
 		}
 	}
 
+	boolean inform(ResourceAllocation allocation) {
+		notifyUpdate(allocation.getId());
+		return true;
+	}
+
 	/**
 	 * Modifies an already running allocation due to external request.
 	 *
@@ -271,255 +747,431 @@ public class Allocations {
 	 * values.
 	 * @return whether the modification has been successful or not
 	 */
-	boolean modify(ResourceAllocation allocation) {
-		synchronized (this.allocations) {
-				if (isAlive(allocation.getId())) {
-					Interval match = findSlot(allocation, false);
-					if (match == null) {
-						LOG.log(Level.FINER, "Allocation modification failed (slot not available): {0}", shortString(allocation));
-						update(get(allocation.getId()), "slot not available", true);
-						return false;
-					} else {
-						LOG.log(Level.FINER, "Allocation modification successful: {0}", shortString(allocation));
-						allocation = ResourceAllocation.newBuilder(allocation).setSlot(match).build();
-						update(allocation, "modification successful", true);
-						return true;
-					}
-				} else {
-					LOG.log(Level.WARNING, "attempt to modify allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-					return false;
-				}
+	boolean modify(ResourceAllocation allocation, Map<String, AllocationRecord> scheduled) {
+		AllocationRecord record = this.allocations.get(allocation.getId());
+		if (record != null && isAlive(allocation.getId())) {
+			Interval match = findSlot(allocation, false);
+			if (match == null) {
+				LOG.log(Level.FINER, "Allocation modification failed (slot not available): {0}", shortString(allocation));
+				update(record, "slot not available", scheduled);
+				return false;
+			} else {
+				LOG.log(Level.FINER, "Allocation modification successful: {0}", shortString(allocation));
+				record.replace(allocation);
+				record.setSlot(match);
+				update(record, "modification successful", scheduled);
+				return true;
+			}
+		} else {
+			LOG.log(Level.WARNING, "attempt to modify allocation ''{0}'' ignored, no such allocation active", allocation.getId());
+			return false;
 		}
 	}
 
-	void schedule(ResourceAllocation allocation) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Scheduling: {0}", shortString(allocation));
-				if (isAlive(allocation.getId())) {
-					this.allocations.put(allocation.getId(), allocation);
-					setState(allocation.getId(), SCHEDULED);
-					updateAffected(allocation, "slot superseded");
-					this.notifications.update(allocation.getId(), true);
-				} else {
-					LOG.log(Level.WARNING, "attempt to schedule allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-				}
+	void schedule(AllocationRecord record, Interval slot, Map<String, AllocationRecord> scheduled) {
+		LOG.log(Level.FINE, "Scheduling: {0}", record.getId());
+		if (isAlive(record.getId())) {
+			record.setSlot(slot);
+			record.setState(SCHEDULED);
+			store(record);
+			scheduled.put(record.getId(), record);
+		} else {
+			LOG.log(Level.WARNING, "attempt to schedule allocation ''{0}'' ignored, no such allocation active", record.getId());
 		}
 	}
 
-	void reject(ResourceAllocation allocation, String reason) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Rejecting: {0}", shortString(allocation));
-				if (isAlive(allocation.getId())) {
-					setState(allocation.getId(), REJECTED);
-					if (reason != null) {
-						setReason(allocation.getId(), reason);
-					}
-					this.notifications.update(allocation.getId(), true);
-					remove(allocation.getId());
-				} else {
-					LOG.log(Level.WARNING, "attempt to reject allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-				}
+	void reject(AllocationRecord record, String reason) {
+		LOG.log(Level.FINE, "Rejecting: {0}", record.getId());
+		if (isAlive(record.getId())) {
+			record.setState(REJECTED);
+			terminate(record, reason);
+		} else {
+			LOG.log(Level.WARNING, "attempt to reject allocation ''{0}'' ignored, no such allocation active", record.getId());
 		}
 	}
 
-	void release(ResourceAllocation allocation, String reason) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Releasing: {0}", shortString(allocation));
-				if (isAlive(allocation.getId())) {
-					setState(allocation.getId(), RELEASED);
-					if (reason != null) {
-						setReason(allocation.getId(), reason);
-					}
-					this.notifications.update(allocation.getId(), true);
-					remove(allocation.getId());
-				} else {
-					LOG.log(Level.WARNING, "attempt to release allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-				}
+	void release(AllocationRecord record, String reason) {
+		LOG.log(Level.FINE, "Releasing: {0}", record.getId());
+		if (isAlive(record.getId())) {
+			record.setState(RELEASED);
+			terminate(record, reason);
+		} else {
+			LOG.log(Level.WARNING, "attempt to release allocation ''{0}'' ignored, no such allocation active", record.getId());
 		}
 	}
 
-	void update(ResourceAllocation allocation, String reason, boolean updateAffected) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Updating: {0}", shortString(allocation));
-				if (isAlive(allocation.getId())) {
-					this.allocations.put(allocation.getId(), allocation);
-					if (reason != null) {
-						setReason(allocation.getId(), reason);
-					}
-					if (updateAffected) {
-						updateAffected(allocation, "slot superseded");
-					}
-					this.notifications.update(allocation.getId(), true);
-				} else {
-					LOG.log(Level.WARNING, "attempt to update allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-				}
+	void update(AllocationRecord record, String reason, Map<String, AllocationRecord> scheduled) {
+		LOG.log(Level.FINE, "Updating: {0}", record.getId());
+		if (isAlive(record.getId())) {
+			store(record);
+			if (reason != null) {
+				setReason(record, reason);
+			}
+			scheduled.put(record.getId(), record);
+		} else {
+			LOG.log(Level.WARNING, "attempt to update allocation ''{0}'' ignored, no such allocation active", record.getId());
 		}
 	}
 
 	boolean finalize(ResourceAllocation allocation, String reason) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Finalizing: {0}", shortString(allocation));
-				if (isAlive(allocation.getId())) {
-					this.allocations.put(allocation.getId(), allocation);
-					if (reason != null) {
-						setReason(allocation.getId(), reason);
-					}
-					this.notifications.update(allocation.getId(), true);
-					remove(allocation.getId());
-					return true;
-				} else {
-					LOG.log(Level.WARNING, "attempt to release allocation ''{0}'' ignored, no such allocation active", allocation.getId());
-					return false;
-				}
+		LOG.log(Level.FINE, "Finalizing: {0}", shortString(allocation));
+		AllocationRecord record = this.allocations.get(allocation.getId());
+		if (record != null && isAlive(allocation.getId())) {
+			record.replace(allocation);
+			terminate(record, reason);
+			return true;
+		} else {
+			LOG.log(Level.WARNING, "attempt to release allocation ''{0}'' ignored, no such allocation active", allocation.getId());
+			return false;
+		}
+	}
+
+	/**
+	 * Publishes the final state of an allocation and removes it.
+	 *
+	 * @param record the allocation, already set to its final state
+	 * @param reason the reason for the final state or <code>null</code>
+	 */
+	private void terminate(AllocationRecord record, String reason) {
+		if (reason != null) {
+			setReason(record, reason);
+		}
+		notifyUpdate(record.getId());
+		remove(record.getId());
+	}
+
+	/**
+	 * Extracts the token from an allocation id of the form
+	 * <code>name#token</code>. Allocations sharing a token are permitted to
+	 * use the same resources at the same time.
+	 *
+	 * @param id the allocation id
+	 * @return the token or <code>null</code> if the id does not contain one
+	 */
+	static String getToken(String id) {
+		Matcher m = TICKET.matcher(id);
+		if (m.matches()) {
+			return m.group(2);
+		} else {
+			return null;
 		}
 	}
 
-	synchronized static boolean sharedPrefix(List<String> one, List<String> two) {
-		boolean contains = false;
-		search:
-		for (String a : one) {
-			for (String b : two) {
-				if (b.startsWith(a) || a.startsWith(b)) {
-					contains = true;
-					break search;
+	/**
+	 * Looks up all stored allocations within the given range of priorities
+	 * that share a resource with the given allocation and whose slot touches
+	 * the given time window, excluding the allocation itself.
+	 *
+	 * @param id the id of the allocation to check
+	 * @param resources the resources of the allocation to check
+	 * @param from the begin of the time window
+	 * @param to the end of the time window
+	 * @param lowest the lowest priority to include
+	 * @param highest the highest priority to include
+	 * @return the conflicting allocations
+	 */
+	private List<AllocationRecord> getConflicting(String id, List<String> resources, long from, long to, Priority lowest, Priority highest) {
+		List<AllocationRecord> conflicting = new LinkedList<>();
+		for (String other : this.index.getConflicting(resources, from, to, lowest, highest)) {
+			if (!other.equals(id)) {
+				AllocationRecord stored = this.allocations.get(other);
+				if (stored != null) {
+					conflicting.add(stored);
 				}
 			}
 		}
-		return contains;
+		return conflicting;
 	}
 
-	synchronized static boolean isPermitted(String one, String two) {
-			Matcher m1 = TICKET.matcher(one);
-			Matcher m2 = TICKET.matcher(two);
-			if (m1.matches() && m2.matches()) {
-				String id1 = m1.group(2);
-				String id2 = m2.group(2);
-				return id1.equals(id2);
-			} else {
-				return false;
+	/**
+	 * Collects the allocations that block the given allocation: those with a
+	 * higher priority and, in case of a refit or a system request, those with
+	 * the same priority. Allocations sharing a ticket token never block each
+	 * other.
+	 */
+	List<AllocationRecord> getBlockers(ResourceAllocation allocation, boolean refit, long from, long to) {
+		AllocationRecord own = this.allocations.get(allocation.getId());
+		String token = (own != null) ? own.getToken() : getToken(allocation.getId());
+		Priority lowest = (refit || allocation.getInitiator().equals(SYSTEM))
+				? allocation.getPriority()
+				: PRIORITIES[Math.min(allocation.getPriority().ordinal() + 1, PRIORITIES.length - 1)];
+		if (lowest == allocation.getPriority() && !(refit || allocation.getInitiator().equals(SYSTEM))) {
+			return new LinkedList<>();
+		}
+
+		long now = this.clock.currentTimeInMicros();
+		this.index.expire(now);
+		List<AllocationRecord> blocking = new LinkedList<>();
+		for (AllocationRecord stored : getConflicting(allocation.getId(), allocation.getResourceIdsList(), Math.max(from, now), to, lowest, PRIORITIES[PRIORITIES.length - 1])) {
+			boolean permitted = token != null && token.equals(stored.getToken());
+			if (!permitted) {
+				blocking.add(stored);
 			}
+		}
 
+		blocking.sort((l, r) -> {
+			return (int) (l.getSlot().getEnd().getTime() - r.getSlot().getEnd().getTime());
+		});
+		return blocking;
 	}
 
-	List<ResourceAllocation> getBlockers(ResourceAllocation allocation, boolean refit) {
-		synchronized (this.allocations) {
+	/**
+	 * Collects the allocations that are affected by the given allocation:
+	 * those with a lower priority and, in case of a human request, those with
+	 * the same priority.
+	 */
+	List<AllocationRecord> getAffected(AllocationRecord allocation) {
+		Priority highest = allocation.getInitiator().equals(HUMAN)
+				? allocation.getPriority()
+				: PRIORITIES[Math.max(allocation.getPriority().ordinal() - 1, 0)];
+		if (highest == allocation.getPriority() && !allocation.getInitiator().equals(HUMAN)) {
+			return new LinkedList<>();
+		}
+
+		long now = this.clock.currentTimeInMicros();
+		this.index.expire(now);
+		return getConflicting(allocation.getId(), allocation.getResources(), now, Long.MAX_VALUE, PRIORITIES[0], highest);
+	}
 
-				Map<String, ResourceAllocation> storedMap = new HashMap<>(this.allocations);
-				storedMap.remove(allocation.getId());
+	Interval findSlot(ResourceAllocation allocation, boolean refit) {
+		return findSlot(allocation, allocation.getState(), allocation.getSlot(), refit);
+	}
 
-				List<ResourceAllocation> blocking = new LinkedList<>();
-				for (ResourceAllocation stored : storedMap.values()) {
-					boolean permitted = isPermitted(stored.getId(), allocation.getId());
-					if (!permitted) {
-						boolean shared = sharedPrefix(stored.getResourceIdsList(), allocation.getResourceIdsList());
-						if (shared) {
-							if (stored.getPriority().compareTo(allocation.getPriority()) > 0) {
-								blocking.add(stored);
-							} else if (stored.getPriority().compareTo(allocation.getPriority()) == 0) {
-								if (refit || allocation.getInitiator().equals(SYSTEM)) {
-									blocking.add(stored);
-								}
-							}
-						}
-					}
+	/**
+	 * Fits an allocation into the current schedule.
+	 *
+	 * @param allocation the allocation providing resources, priority, policy
+	 * and constraints
+	 * @param state the current state of the allocation
+	 * @param slot the current slot of the allocation
+	 * @param refit whether blockers with the same priority block anyway
+	 * @return the best matching slot or <code>null</code> if there is none
+	 */
+	Interval findSlot(ResourceAllocation allocation, State state, Interval slot, boolean refit) {
+		LOG.log(Level.FINE, "Fitting: {0}", allocation.getId());
+		Interval constraints = allocation.hasConstraints() ? allocation.getConstraints() : slot;
+		long from = slot.getBegin().getTime();
+		long to = slot.getEnd().getTime();
+		if (!state.equals(ALLOCATED)) {
+			from = Math.min(from, constraints.getBegin().getTime());
+			to = Math.max(to, constraints.getEnd().getTime());
+		}
+		List<AllocationRecord> blockers = getBlockers(allocation, refit, from, to);
+		if (!blockers.isEmpty()) {
+			List<Interval> times = blockers.stream().map(b -> b.getSlot()).collect(Collectors.toList());
+			Interval match = null;
+			if (state.equals(ALLOCATED)) {
+				match = findRemaining(slot, times, this.clock.currentTimeInMicros());
+			} else {
+				switch (allocation.getPolicy()) {
+					case PRESERVE:
+						match = IntervalUtils.findComplete(slot, constraints, times);
+						break;
+					case FIRST:
+						match = IntervalUtils.findFirst(slot, constraints, times);
+						break;
+					case MAXIMUM:
+						match = IntervalUtils.findMax(slot, constraints, times);
+						break;
+					default:
+						LOG.log(Level.INFO, "Requested allocation failed (unsupported policy): {0}", shortString(allocation));
+						break;
 				}
+			}
+			return match;
+		} else if (state.equals(ALLOCATED)) {
+			return includeNow(slot, this.clock.currentTimeInMicros());
+		} else {
+			return slot;
+		}
+	}
 
-				blocking.removeIf(e -> e.getSlot().getEnd().getTime() < currentTimeInMicros());
-				blocking.sort((l, r) -> {
-					return (int) (l.getSlot().getEnd().getTime() - r.getSlot().getEnd().getTime());
-				});
-				return blocking;
+	/**
+	 * Shortens a running slot so that it ends before the first blocker. Same
+	 * as {@link IntervalUtils#findRemaining(Interval, List)}, but refers to
+	 * the given time instead of the system time.
+	 *
+	 * @param slot the running slot
+	 * @param blockers the slots of the blocking allocations
+	 * @param now the current time of the registry clock
+	 * @return the remaining slot or <code>null</code> if a blocker has
+	 * already begun
+	 */
+	private static Interval findRemaining(Interval slot, List<Interval> blockers, long now) {
+		long end = slot.getEnd().getTime();
+		for (Interval blocker : blockers) {
+			long begin = blocker.getBegin().getTime();
+			if (begin <= now) {
+				return null;
+			}
+			end = Math.min(end, begin);
+		}
+		return includeNow(Interval.newBuilder(slot).setEnd(Timestamp.newBuilder().setTime(end).build()).build(), now);
+	}
 
+	/**
+	 * Moves the begin of a running slot to the given time if it lies in the
+	 * future. Same as {@link IntervalUtils#includeNow(Interval)}, but refers
+	 * to the given time instead of the system time.
+	 *
+	 * @param slot the running slot
+	 * @param now the current time of the registry clock
+	 * @return the slot including the current time
+	 */
+	private static Interval includeNow(Interval slot, long now) {
+		if (slot.getBegin().getTime() <= now) {
+			return slot;
 		}
+		return Interval.newBuilder(slot).setBegin(Timestamp.newBuilder().setTime(now).build()).build();
 	}
 
-	List<ResourceAllocation> getAffected(ResourceAllocation allocation) {
-		synchronized (this.allocations) {
+	/**
+	 * Re-fits all allocations displaced by the given allocations.
+	 *
+	 * The displaced allocations are collected once and re-fitted in order of
+	 * descending priority, so that more important allocations get the first
+	 * choice of the remaining time. The index is updated after every fit, so
+	 * that later fits see the outcome of earlier ones. Clients are only
+	 * notified once the whole cascade has been computed.
+	 *
+	 * @param allocations the allocations that have been scheduled or updated
+	 * @param reason the reason published for displaced allocations
+	 */
+	void updateAffected(Collection<AllocationRecord> allocations, String reason) {
+		Map<String, AllocationRecord> displaced = new LinkedHashMap<>();
+		for (AllocationRecord allocation : allocations) {
+			LOG.log(Level.FINE, "Updating allocations affected by: {0}", allocation.getId());
+			for (AllocationRecord running : getAffected(allocation)) {
+				displaced.putIfAbsent(running.getId(), running);
+			}
+		}
 
-				Map<String, ResourceAllocation> storedMap = new HashMap<>(this.allocations);
-				storedMap.remove(allocation.getId());
+		List<AllocationRecord> ordered = new ArrayList<>(displaced.values());
+		ordered.sort(DISPLACEMENT_ORDER);
 
-				List<ResourceAllocation> affected = new LinkedList<>();
-				for (ResourceAllocation stored : storedMap.values()) {
-					boolean shared = sharedPrefix(stored.getResourceIdsList(), allocation.getResourceIdsList());
-					if (shared) {
-						if (stored.getPriority().compareTo(allocation.getPriority()) < 0) {
-							affected.add(stored);
-						} else if (stored.getPriority().compareTo(allocation.getPriority()) == 0) {
-							if (allocation.getInitiator().equals(HUMAN)) {
-								affected.add(stored);
-							}
-						}
+		List<AllocationRecord> shifted = new LinkedList<>();
+		List<AllocationRecord> terminated = new LinkedList<>();
+		List<List<AllocationRecord>> groups = partition(ordered);
+		if (groups.size() < 2) {
+			for (List<AllocationRecord> group : groups) {
+				refit(group, shifted, terminated);
+			}
+		} else {
+			List<Callable<Void>> tasks = new ArrayList<>(groups.size());
+			List<List<AllocationRecord>> shiftedPerGroup = new ArrayList<>(groups.size());
+			List<List<AllocationRecord>> terminatedPerGroup = new ArrayList<>(groups.size());
+			for (List<AllocationRecord> group : groups) {
+				List<AllocationRecord> s = new LinkedList<>();
+				List<AllocationRecord> t = new LinkedList<>();
+				shiftedPerGroup.add(s);
+				terminatedPerGroup.add(t);
+				tasks.add(() -> {
+					refit(group, s, t);
+					return null;
+				});
+			}
+			for (Future<Void> f : REFIT.invokeAll(tasks)) {
+				try {
+					f.get();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) ex.getCause();
 					}
+					throw new IllegalStateException(ex.getCause());
 				}
+			}
+			shiftedPerGroup.forEach(shifted::addAll);
+			terminatedPerGroup.forEach(terminated::addAll);
+		}
 
-				affected.removeIf(e -> e.getSlot().getEnd().getTime() < currentTimeInMicros());
-				affected.sort((l, r) -> {
-					return (int) (l.getSlot().getEnd().getTime() - r.getSlot().getEnd().getTime());
-				});
-				return affected;
-
+		for (AllocationRecord running : shifted) {
+			setReason(running, reason);
+			notifyUpdate(running.getId());
+		}
+		for (AllocationRecord running : terminated) {
+			terminate(running, reason);
 		}
 	}
 
-	Interval findSlot(ResourceAllocation allocation, boolean refit) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Fitting: {0}", shortString(allocation));
-				List<ResourceAllocation> blockers = getBlockers(allocation, refit);
-				if (!blockers.isEmpty()) {
-					List<Interval> times = blockers.stream().map(b -> b.getSlot()).collect(Collectors.toList());
-					Interval match = null;
-					if (allocation.getState().equals(ALLOCATED)) {
-						match = IntervalUtils.findRemaining(allocation.getSlot(), times);
-					} else {
-						switch (allocation.getPolicy()) {
-							case PRESERVE:
-								match = IntervalUtils.findComplete(allocation.getSlot(), allocation.hasConstraints() ? allocation.getConstraints() : allocation.getSlot(), times);
-								break;
-							case FIRST:
-								match = IntervalUtils.findFirst(allocation.getSlot(), allocation.hasConstraints() ? allocation.getConstraints() : allocation.getSlot(), times);
-								break;
-							case MAXIMUM:
-								match = IntervalUtils.findMax(allocation.getSlot(), allocation.hasConstraints() ? allocation.getConstraints() : allocation.getSlot(), times);
-								break;
-							default:
-								LOG.log(Level.INFO, "Requested allocation failed (unsupported policy): {0}", shortString(allocation));
-								break;
-						}
-					}
-					return match;
-				} else if (allocation.getState().equals(ALLOCATED)) {
-					return IntervalUtils.includeNow(allocation.getSlot());
-				} else {
-					return allocation.getSlot();
+	/**
+	 * Re-fits a group of displaced allocations one after another. Changes are
+	 * applied to the registry right away so that later allocations of the
+	 * group are fitted around them, but are not yet published.
+	 *
+	 * @param group the displaced allocations in order of precedence
+	 * @param shifted collects the allocations that were moved
+	 * @param terminated collects the allocations that no longer fit
+	 */
+	private void refit(List<AllocationRecord> group, List<AllocationRecord> shifted, List<AllocationRecord> terminated) {
+		for (AllocationRecord running : group) {
+			if (!isAlive(running.getId())) {
+				LOG.log(Level.WARNING, "attempt to update allocation ''{0}'' ignored, no such allocation active", running.getId());
+				continue;
+			}
+			LOG.log(Level.FINER, "Updating: {0}", running.getId());
+			Interval mod = findSlot(running.getTemplate(), running.getState(), running.getSlot(), true);
+			if (mod == null) {
+				switch (running.getState()) {
+					case REQUESTED:
+					case SCHEDULED:
+						running.setState(CANCELLED);
+						break;
+					case ALLOCATED:
+						running.setState(ABORTED);
+						break;
 				}
+				this.index.remove(running.getId());
+				terminated.add(running);
+			} else if (!mod.equals(running.getSlot())) {
+				running.setSlot(mod);
+				store(running);
+				shifted.add(running);
+			}
 		}
 	}
 
-	void updateAffected(ResourceAllocation allocation, String reason) {
-		synchronized (this.allocations) {
-				LOG.log(Level.FINE, "Updating allocations affected by: {0}", shortString(allocation));
-				List<ResourceAllocation> affected = getAffected(allocation);
-				for (ResourceAllocation running : affected) {
-					LOG.log(Level.FINER, "Updating: {0}", shortString(running));
-					Interval mod = findSlot(running, true);
-					ResourceAllocation.Builder builder = ResourceAllocation.newBuilder(running);
-					if (mod == null) {
-						switch (running.getState()) {
-							case REQUESTED:
-							case SCHEDULED:
-								builder.setState(CANCELLED);
-								break;
-							case ALLOCATED:
-								builder.setState(ABORTED);
-								break;
-						}
-						finalize(builder.build(), reason);
-					} else if (!mod.equals(running.getSlot())) {
-						builder.setSlot(mod);
-						update(builder.build(), reason, false);
-					}
+	/**
+	 * Partitions displaced allocations into groups that do not share any
+	 * resources with each other. Since re-fitting an allocation only depends
+	 * on allocations holding conflicting resources, the groups can be
+	 * re-fitted independently. The order of allocations is retained within
+	 * each group.
+	 *
+	 * @param ordered the displaced allocations in order of precedence
+	 * @return the independent groups
+	 */
+	private List<List<AllocationRecord>> partition(List<AllocationRecord> ordered) {
+		Map<String, Integer> positions = new HashMap<>();
+		for (int i = 0; i < ordered.size(); i++) {
+			positions.put(ordered.get(i).getId(), i);
+		}
+		int[] parents = new int[ordered.size()];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+		for (int i = 0; i < ordered.size(); i++) {
+			for (String other : this.index.getConflicting(ordered.get(i).getResources())) {
+				Integer j = positions.get(other);
+				if (j != null) {
+					parents[find(parents, i)] = find(parents, j);
 				}
+			}
+		}
+
+		Map<Integer, List<AllocationRecord>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < ordered.size(); i++) {
+			groups.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(ordered.get(i));
+		}
+		return new ArrayList<>(groups.values());
+	}
+
+	private static int find(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
 		}
+		return i;
 	}
 }
@@ -16,15 +16,48 @@
  */
 package de.citec.csra.allocation.srv;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
+ * Starts an allocation server for each scope given on the command line, or
+ * for the default scope if there are none. Each server listens on its own
+ * thread.
  *
  * @author Patrick Holthaus
  * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
  */
 public class Allocator {
 
+	private final static Logger LOG = Logger.getLogger(Allocator.class.getName());
+
 	public static void main(String[] args) throws Exception {
-		AllocationServer a = AllocationServer.getInstance();
+		if (args.length == 0) {
+			serve(AllocationServer.getInstance());
+			return;
+		}
+
+		List<Thread> shards = new ArrayList<>();
+		for (String scope : args) {
+			AllocationServer a = AllocationServer.getInstance(scope);
+			Thread t = new Thread(() -> {
+				try {
+					serve(a);
+				} catch (Exception ex) {
+					LOG.log(Level.SEVERE, "Allocation service at '" + scope + "' failed", ex);
+				}
+			}, "allocation-" + scope);
+			shards.add(t);
+			t.start();
+		}
+		for (Thread t : shards) {
+			t.join();
+		}
+	}
+
+	private static void serve(AllocationServer a) throws Exception {
 		a.activate();
 		a.listen();
 		a.deactivate();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.Factory;
+import rsb.Informer;
+import rsb.RSBException;
+import rsb.converter.DefaultConverterRepository;
+import rsb.converter.ProtocolBufferConverter;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.generic.ValueType.Value;
+
+/**
+ * Optional output channel for bulk consumers.
+ *
+ * Publishes the changes of each arbitration step as a single message on the
+ * sub-scope <code>changes/</code> and the complete registry
+ * periodically on the sub-scope <code>snapshot/</code> of a sibling scope of
+ * the allocation service, e.g. <code>/coordination/allocation-batch/</code>
+ * for <code>/coordination/allocation/</code>. Subscribers of the service
+ * scope are therefore not affected.
+ *
+ * Messages are {@link Value}s of type <code>ARRAY</code> whose elements are
+ * serialized {@link ResourceAllocation}s of type <code>BINARY</code>.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class BatchPublisher {
+
+	static {
+		DefaultConverterRepository.getDefaultConverterRepository()
+				.addConverter(new ProtocolBufferConverter<>(Value.getDefaultInstance()));
+	}
+
+	private final static Logger LOG = Logger.getLogger(BatchPublisher.class.getName());
+	private final static String SUFFIX = "-batch/";
+	private final Informer changes;
+	private final Informer snapshots;
+
+	/**
+	 * Creates the batch channel for the given service scope and starts
+	 * publishing snapshots.
+	 *
+	 * @param scope the scope of the allocation service
+	 * @param period the period of snapshots in milliseconds or 0 to disable
+	 * snapshots
+	 * @throws RSBException
+	 */
+	BatchPublisher(String scope, long period) throws RSBException {
+		String sibling = NotificationService.getSibling(scope, SUFFIX);
+		this.changes = Factory.getInstance().createInformer(sibling + "changes/");
+		this.changes.activate();
+		this.snapshots = Factory.getInstance().createInformer(sibling + "snapshot/");
+		this.snapshots.activate();
+		if (period > 0) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "snapshot-" + scope);
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(() -> publish(this.snapshots, Allocations.getInstance(scope).getAll()), period, period, MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Publishes the given changes as a single message.
+	 *
+	 * @param allocations the allocations changed in an arbitration step
+	 */
+	void publishChanges(Collection<ResourceAllocation> allocations) {
+		if (!allocations.isEmpty()) {
+			publish(this.changes, allocations);
+		}
+	}
+
+	private void publish(Informer informer, Collection<ResourceAllocation> allocations) {
+		Value.Builder batch = Value.newBuilder().setType(Value.Type.ARRAY);
+		for (ResourceAllocation allocation : allocations) {
+			batch.addArray(Value.newBuilder().setType(Value.Type.BINARY).setBinary(allocation.toByteString()));
+		}
+		try {
+			informer.publish(batch.build());
+		} catch (RSBException ex) {
+			LOG.log(Level.SEVERE, "Could not publish " + allocations.size() + " allocations at '" + informer.getScope() + "'", ex);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+/**
+ * Source of time for the arbitration and scheduler for the lifecycle of
+ * allocations.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public interface Clock {
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	interface Timer {
+
+		/**
+		 * Cancels the task if it has not run yet.
+		 */
+		void cancel();
+	}
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return the current time in microseconds
+	 */
+	long currentTimeInMicros();
+
+	/**
+	 * Runs the given task once this clock has reached the given time. Tasks
+	 * should be short, but may briefly wait for the locks of the arbitration.
+	 *
+	 * @param task the task to run
+	 * @param time the time to run the task at in microseconds
+	 * @return the handle to cancel the task with
+	 */
+	Timer schedule(Runnable task, long time);
+}
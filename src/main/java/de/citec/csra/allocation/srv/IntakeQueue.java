@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REQUESTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ * Bounded queue of incoming messages ordered by priority.
+ *
+ * Messages with a higher priority are taken first, messages with the same
+ * priority in order of arrival. A message never overtakes an earlier message
+ * for the same allocation: it is queued with at most the priority of its
+ * predecessor.
+ *
+ * When the queue is full, requests for new allocations are only accepted if
+ * they can displace a queued request for a new allocation with a lower
+ * priority. Displaced and refused requests are returned to the caller to be
+ * rejected. Messages that refer to known allocations, including repeated
+ * requests, are accepted beyond the capacity up to a hard limit. Beyond the
+ * capacity, a message with the same state as the queued predecessor for its
+ * allocation is coalesced into it: a modification replaces the predecessor,
+ * any other message is a duplicate and is dropped. Beyond the limit, all
+ * other messages for known allocations are refused as well.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class IntakeQueue {
+
+	private final static int HEADROOM = 4;
+	private final int capacity;
+	private final int limit;
+	private final TreeSet<Item> items = new TreeSet<>();
+	private final Map<String, Item> latest = new HashMap<>();
+	private long sequence;
+
+	private static class Item implements Comparable<Item> {
+
+		private final ResourceAllocation message;
+		private final Priority priority;
+		private final long sequence;
+		private final boolean known;
+
+		private Item(ResourceAllocation message, Priority priority, long sequence, boolean known) {
+			this.message = message;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.known = known;
+		}
+
+		private boolean isNew() {
+			return !this.known && this.message.getState() == REQUESTED;
+		}
+
+		@Override
+		public int compareTo(Item o) {
+			int c = o.priority.compareTo(this.priority);
+			return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+		}
+	}
+
+	IntakeQueue(int capacity) {
+		this.capacity = capacity;
+		this.limit = capacity * HEADROOM;
+	}
+
+	/**
+	 * Queues a message unless the queue is full and the message requests a new
+	 * allocation.
+	 *
+	 * @param incoming the message to queue
+	 * @param known whether the allocation is already registered or has
+	 * messages in flight, in which case the message is accepted up to the
+	 * hard limit
+	 * @return the message that has been shed to make room or has been refused
+	 * or <code>null</code> if no message has been shed
+	 */
+	synchronized ResourceAllocation put(ResourceAllocation incoming, boolean known) {
+		ResourceAllocation shed = null;
+		if (this.items.size() >= this.capacity && known) {
+			Item predecessor = this.latest.get(incoming.getId());
+			if (predecessor != null && predecessor.message.getState() == incoming.getState()) {
+				if (incoming.getState() == SCHEDULED || incoming.getState() == ALLOCATED) {
+					Item item = new Item(incoming, predecessor.priority, predecessor.sequence, predecessor.known);
+					this.items.remove(predecessor);
+					this.items.add(item);
+					this.latest.put(incoming.getId(), item);
+				}
+				return null;
+			} else if (this.items.size() >= this.limit) {
+				return incoming;
+			}
+		} else if (this.items.size() >= this.capacity && !known && incoming.getState() == REQUESTED) {
+			Item victim = null;
+			Iterator<Item> it = this.items.descendingIterator();
+			while (it.hasNext()) {
+				Item candidate = it.next();
+				if (candidate.priority.compareTo(incoming.getPriority()) >= 0) {
+					break;
+				}
+				if (candidate.isNew() && this.latest.get(candidate.message.getId()) == candidate) {
+					victim = candidate;
+					break;
+				}
+			}
+			if (victim == null) {
+				return incoming;
+			}
+			this.items.remove(victim);
+			this.latest.remove(victim.message.getId());
+			shed = victim.message;
+		}
+
+		Priority priority = incoming.getPriority();
+		Item predecessor = this.latest.get(incoming.getId());
+		if (predecessor != null && predecessor.priority.compareTo(priority) < 0) {
+			priority = predecessor.priority;
+		}
+		Item item = new Item(incoming, priority, this.sequence++, known);
+		this.items.add(item);
+		this.latest.put(incoming.getId(), item);
+		notifyAll();
+		return shed;
+	}
+
+	/**
+	 * Waits for a message and moves it and all other queued messages to the
+	 * given collection in order.
+	 *
+	 * @param batch the collection to add the messages to
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized void drainTo(Collection<ResourceAllocation> batch) throws InterruptedException {
+		while (this.items.isEmpty()) {
+			wait();
+		}
+		for (Item item : this.items) {
+			batch.add(item.message);
+		}
+		this.items.clear();
+		this.latest.clear();
+	}
+
+	synchronized int size() {
+		return this.items.size();
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the lateness of lifecycle transitions, i.e. the time between
+ * the scheduled begin or end of a slot and the actual transition. The
+ * transition is measured when the registry changes the state, i.e. before
+ * the update is published asynchronously and before the debounce window of
+ * the publisher. The delay that subscribers observe is therefore larger.
+ *
+ * Bucket <code>0</code> counts transitions that happened on time, bucket
+ * <code>i</code> those that were late by
+ * <code>[2<sup>i-1</sup>, 2<sup>i</sup>)</code> microseconds.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class LatenessHistogram {
+
+	private final static int BUCKETS = 40;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records the lateness of a transition.
+	 *
+	 * @param micros the lateness in microseconds
+	 */
+	void record(long micros) {
+		long lateness = Math.max(0, micros);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(lateness));
+		this.buckets.incrementAndGet(bucket);
+		this.count.incrementAndGet();
+		this.sum.addAndGet(lateness);
+		this.max.accumulateAndGet(lateness, Math::max);
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * @return the maximal lateness in microseconds
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @return the mean lateness in microseconds
+	 */
+	public double getMean() {
+		long n = this.count.get();
+		return n > 0 ? (double) this.sum.get() / n : 0;
+	}
+
+	/**
+	 * Estimates a percentile of the lateness by the upper bound of the bucket
+	 * it falls into.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the upper bound of the lateness in microseconds
+	 */
+	public long getPercentile(double percentile) {
+		long n = this.count.get();
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return i == 0 ? 0 : (1L << i) - 1;
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return the number of transitions per bucket
+	 */
+	public long[] getBuckets() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = this.buckets.get(i);
+		}
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%dus p99=%dus max=%dus",
+				getCount(), getMean(), getPercentile(50), getPercentile(99), getMax());
+	}
+}
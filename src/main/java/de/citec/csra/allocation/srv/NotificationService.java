@@ -18,9 +18,7 @@ package de.citec.csra.allocation.srv;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import rsb.Factory;
@@ -35,33 +33,128 @@ import rsb.RSBException;
  */
 public class NotificationService {
 
-	private final Map<String, RemoteNotifier> notifiers = new HashMap<>();
-	private final Map<String, Future> futures = new HashMap<>();
+	private final Map<String, RemoteNotifier> notifiers = new ConcurrentHashMap<>();
+	private final static String DEBOUNCEVAR = "ALLOCATION_DEBOUNCE";
+	private final static long DEFAULT_DEBOUNCE = 0;
+	private final static String BATCHVAR = "ALLOCATION_BATCH";
+	private final static String SNAPSHOTVAR = "ALLOCATION_SNAPSHOT";
+	private final static long DEFAULT_SNAPSHOT = 5000;
+	private final static String RESOURCEVAR = "ALLOCATION_RESOURCE_SCOPES";
+	private final static String RESOURCESUFFIX = "-resources/";
 	private final static Logger LOG = Logger.getLogger(NotificationService.class.getName());
-	private final ExecutorService exec = Executors.newCachedThreadPool();
+	private final String scope;
+	private Allocations allocations;
 	private Informer informer;
+	private Publisher publisher;
 	private ParticipantId participant;
 
-	private static NotificationService instance;
+	private final static Map<String, NotificationService> INSTANCES = new HashMap<>();
 
-	public synchronized static NotificationService getInstance() {
+	public static NotificationService getInstance() {
+		return getInstance(AllocationServer.getScope());
+	}
+
+	public synchronized static NotificationService getInstance(String scope) {
+		NotificationService instance = INSTANCES.get(scope);
 		if (instance == null) {
-			instance = new NotificationService();
+			instance = new NotificationService(scope);
+			INSTANCES.put(scope, instance);
 		}
 		return instance;
 	}
 
-	private NotificationService() {
+	private NotificationService(String scope) {
+		this.scope = scope;
 		try {
-			this.informer = Factory.getInstance().createInformer(AllocationServer.getScope());
+			this.informer = Factory.getInstance().createInformer(scope);
 			this.informer.activate();
 			this.participant = this.informer.getId();
+			this.publisher = new Publisher(this.informer, scope, getDebounce(), createBatchPublisher(scope), createResourceInformer(scope));
 		} catch (RSBException ex) {
 			LOG.log(Level.SEVERE, "RSB communication failed", ex);
 			this.informer = null;
 		}
 	}
 
+	/**
+	 * Returns the window in which updates of an allocation are coalesced, as
+	 * given by <code>$ALLOCATION_DEBOUNCE</code>. Disabled by default, since
+	 * the window delays every published transition.
+	 *
+	 * @return the window in microseconds
+	 */
+	private static long getDebounce() {
+		return AllocationServer.getEnv(DEBOUNCEVAR, "debounce window", 0, DEFAULT_DEBOUNCE);
+	}
+
+	private static BatchPublisher createBatchPublisher(String scope) {
+		if (Boolean.parseBoolean(System.getenv(BATCHVAR))) {
+			try {
+				return new BatchPublisher(scope, getSnapshotPeriod());
+			} catch (RSBException ex) {
+				LOG.log(Level.SEVERE, "Could not create batch channel, publishing single allocations only", ex);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the informer for the resource scopes below the sibling scope
+	 * <code>-resources/</code> of the service, if enabled by exporting
+	 * <code>ALLOCATION_RESOURCE_SCOPES=true</code>.
+	 *
+	 * @param scope the scope of the allocation service
+	 * @return the informer or <code>null</code>
+	 */
+	private static Informer createResourceInformer(String scope) {
+		if (Boolean.parseBoolean(System.getenv(RESOURCEVAR))) {
+			try {
+				Informer informer = Factory.getInstance().createInformer(getSibling(scope, RESOURCESUFFIX));
+				informer.activate();
+				return informer;
+			} catch (RSBException ex) {
+				LOG.log(Level.SEVERE, "Could not create resource scopes, publishing on the service scope only", ex);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Derives a sibling scope from the scope of the allocation service, e.g.
+	 * <code>/coordination/allocation-batch/</code> for
+	 * <code>/coordination/allocation/</code> and the suffix
+	 * <code>-batch/</code>.
+	 *
+	 * @param scope the scope of the allocation service
+	 * @param suffix the suffix to append to the last component
+	 * @return the sibling scope
+	 */
+	static String getSibling(String scope, String suffix) {
+		String base = scope.endsWith("/") ? scope.substring(0, scope.length() - 1) : scope;
+		return base + suffix;
+	}
+
+	/**
+	 * Returns the period of full snapshots on the batch channel, as given by
+	 * <code>$ALLOCATION_SNAPSHOT</code>. The batch channel itself is enabled
+	 * by exporting <code>ALLOCATION_BATCH=true</code>.
+	 *
+	 * @return the period in milliseconds
+	 */
+	private static long getSnapshotPeriod() {
+		return AllocationServer.getEnv(SNAPSHOTVAR, "snapshot period", 0, DEFAULT_SNAPSHOT);
+	}
+
+	/**
+	 * Binds the service to the registry of its scope. Called once by the
+	 * registry while it is created, before any allocation is handled.
+	 *
+	 * @param allocations the registry to drive notifiers with
+	 */
+	void bind(Allocations allocations) {
+		this.allocations = allocations;
+	}
+
 	public ParticipantId getID() {
 		return this.participant;
 	}
@@ -72,10 +165,55 @@ public class NotificationService {
 
 	public void init(String id) {
 		if (functional()) {
-			RemoteNotifier r = new RemoteNotifier(this.informer, id);
+			RemoteNotifier r = new RemoteNotifier(this.publisher, id, this.allocations);
 			this.notifiers.put(id, r);
-			this.futures.put(id, this.exec.submit(r));
-			r.update();
+			r.start();
+		}
+	}
+
+	/**
+	 * Publishes a message for an allocation that has never been registered,
+	 * e.g. the rejection of a request that has not been arbitrated at all.
+	 *
+	 * @param allocation the allocation to publish
+	 */
+	void publish(AllocationRecord allocation) {
+		if (functional()) {
+			this.publisher.publish(allocation.snapshot());
+		} else {
+			LOG.log(Level.WARNING, "attempt to publish allocation ''{0}'' ignored, RSB communication not available", allocation.getId());
+		}
+	}
+
+	/**
+	 * Starts an arbitration step on the current thread, see
+	 * {@link Publisher#beginStep()}.
+	 */
+	void beginStep() {
+		if (this.publisher != null) {
+			this.publisher.beginStep();
+		}
+	}
+
+	/**
+	 * Ends the arbitration step of the current thread, see
+	 * {@link Publisher#endStep()}.
+	 */
+	void endStep() {
+		if (this.publisher != null) {
+			this.publisher.endStep();
+		}
+	}
+
+	/**
+	 * Stops notifying about the allocation with the given id.
+	 *
+	 * @param id the allocation id
+	 */
+	public void discard(String id) {
+		RemoteNotifier notifier = this.notifiers.remove(id);
+		if (notifier != null) {
+			notifier.cancel();
 		}
 	}
 
@@ -86,15 +224,8 @@ public class NotificationService {
 				if (publish) {
 					notifier.update();
 				}
-				if (!Allocations.getInstance().isAlive(id)) {
-					if (this.futures.containsKey(id)) {
-
-						Future f = this.futures.get(id);
-						f.cancel(false);
-
-						this.notifiers.remove(id);
-						this.futures.remove(id);
-					}
+				if (!this.allocations.isAlive(id)) {
+					discard(id);
 				}
 			} else {
 				LOG.log(Level.WARNING, "attempt to update notifier for allocation ''{0}'' ignored, no such allocation available", id);
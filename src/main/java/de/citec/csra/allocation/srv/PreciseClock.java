@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import de.citec.csra.rst.util.IntervalUtils;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clock that follows the system time and runs tasks at precise deadlines.
+ *
+ * The time is derived from the system time at construction and the
+ * {@link System#nanoTime()} elapsed since, so that it is monotonic and
+ * deadlines can be converted into nano time without drift. A single timer
+ * thread parks until shortly before the earliest deadline and spins for the
+ * remainder, so that tasks start within microseconds of their deadline
+ * instead of the millisecond granularity of monitors. The timer thread only
+ * hands due tasks to a small pool of workers, so that a task waiting for the
+ * locks of the arbitration does not delay other deadlines. Such delays show
+ * up in the lateness histograms of the registry.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PreciseClock implements Clock {
+
+	private final static Logger LOG = Logger.getLogger(PreciseClock.class.getName());
+	private final static long SPIN = 200000;
+	private final static int THREADS = 2;
+
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	private final Thread timer;
+	private final ExecutorService workers;
+	private final long base;
+	private final long origin;
+	private long sequence;
+
+	private static class Task implements Comparable<Task> {
+
+		private final long deadline;
+		private final long sequence;
+		private final Runnable runnable;
+
+		private Task(long deadline, long sequence, Runnable runnable) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			int c = Long.compare(this.deadline - o.deadline, 0);
+			return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+		}
+	}
+
+	public PreciseClock() {
+		this.base = IntervalUtils.currentTimeInMicros();
+		this.origin = System.nanoTime();
+		this.workers = Executors.newFixedThreadPool(THREADS, r -> {
+			Thread t = new Thread(r, "precise-clock-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.timer = new Thread(this::run, "precise-clock");
+		this.timer.setDaemon(true);
+		this.timer.setPriority(Thread.MAX_PRIORITY);
+		this.timer.start();
+	}
+
+	@Override
+	public long currentTimeInMicros() {
+		return this.base + (System.nanoTime() - this.origin) / 1000;
+	}
+
+	@Override
+	public Timer schedule(Runnable runnable, long time) {
+		long deadline = this.origin + (time - this.base) * 1000;
+		Task task;
+		boolean earliest;
+		synchronized (this.tasks) {
+			task = new Task(deadline, this.sequence++, runnable);
+			this.tasks.add(task);
+			earliest = this.tasks.peek() == task;
+		}
+		if (earliest) {
+			LockSupport.unpark(this.timer);
+		}
+		return () -> {
+			synchronized (this.tasks) {
+				this.tasks.remove(task);
+			}
+		};
+	}
+
+	private void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			Task next;
+			synchronized (this.tasks) {
+				next = this.tasks.peek();
+			}
+			if (next == null) {
+				LockSupport.park(this);
+				continue;
+			}
+			long remaining = next.deadline - System.nanoTime();
+			if (remaining > SPIN) {
+				LockSupport.parkNanos(this, remaining - SPIN);
+				continue;
+			}
+			while (next.deadline - System.nanoTime() > 0) {
+				Thread.yield();
+			}
+			synchronized (this.tasks) {
+				if (this.tasks.peek() != next) {
+					continue;
+				}
+				this.tasks.poll();
+			}
+			this.workers.execute(() -> {
+				try {
+					next.runnable.run();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.SEVERE, "Scheduled task failed", ex);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.rst.util.StringRepresentation.shortString;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rsb.Event;
+import rsb.Informer;
+import rsb.RSBException;
+import rsb.Scope;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+
+/**
+ * Outbound stage that decouples publishing from the arbitration.
+ *
+ * Messages are put into a bounded ring buffer and sent by a single publisher
+ * thread in the order they were enqueued. Messages published by a thread
+ * between {@link #beginStep()} and {@link #endStep()} form an arbitration
+ * step and are enqueued together once the step ends. Any other message forms
+ * a step of its own. Since allocation messages are immutable snapshots, the
+ * arbitration only pays for enqueueing while holding its locks, not for the
+ * transport. If the transport falls behind by more than the capacity of the
+ * buffer, enqueueing blocks.
+ *
+ * Every event carries the version of the allocation in the user info
+ * <code>version</code> of its meta data. Updates of the same allocation that
+ * are enqueued within the debounce window are coalesced into the latest
+ * version, and versions older than the last one sent for the allocation are
+ * dropped. Re-sending the current version is allowed. Terminal states are
+ * never coalesced. If a batch channel is given, the messages of each step are additionally
+ * published together, regardless of the debounce window.
+ *
+ * Optionally, allocations are additionally published on the scopes of their
+ * resources below a sibling scope of the service, e.g. on
+ * <code>/coordination/allocation-resources/robot/arm/</code> for the resource
+ * <code>/robot/arm</code>, so that clients can subscribe to the resources
+ * they are interested in. Subscribers of the service scope are not affected.
+ * An allocation is only published on the deepest of its resource scopes, as
+ * subscribers of enclosing scopes receive it from there.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class Publisher {
+
+	private final static Logger LOG = Logger.getLogger(Publisher.class.getName());
+	private final static int CAPACITY = 4096;
+	final static String VERSION = "version";
+
+	private final Informer informer;
+	private final long window;
+	private final BatchPublisher batches;
+	private final Informer resources;
+	private final Map<String, Scope> scopes = new HashMap<>();
+	private final BlockingQueue<List<AllocationRecord.Snapshot>> ring = new ArrayBlockingQueue<>(CAPACITY);
+	private final ThreadLocal<List<AllocationRecord.Snapshot>> steps = new ThreadLocal<>();
+	private final static int HISTORY = 10000;
+	private final Map<String, Long> sent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > HISTORY;
+		}
+	};
+
+	/**
+	 * Starts a publisher thread.
+	 *
+	 * @param informer the informer to publish with
+	 * @param name the name of the publisher thread
+	 * @param window the debounce window in microseconds
+	 * @param batches the channel to publish all messages of a step together or
+	 * <code>null</code>
+	 * @param resources the informer to additionally publish on the scopes of
+	 * the resources with or <code>null</code>
+	 */
+	Publisher(Informer informer, String name, long window, BatchPublisher batches, Informer resources) {
+		this.informer = informer;
+		this.window = window;
+		this.batches = batches;
+		this.resources = resources;
+		Thread t = new Thread(this::run, "publisher-" + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Enqueues a version of an allocation for publishing, or adds it to the
+	 * step of the current thread if there is one.
+	 *
+	 * @param snapshot the version to publish
+	 */
+	void publish(AllocationRecord.Snapshot snapshot) {
+		List<AllocationRecord.Snapshot> step = this.steps.get();
+		if (step != null) {
+			step.add(snapshot);
+		} else {
+			enqueue(Collections.singletonList(snapshot));
+		}
+	}
+
+	/**
+	 * Starts an arbitration step on the current thread. Steps do not nest.
+	 */
+	void beginStep() {
+		if (this.steps.get() == null) {
+			this.steps.set(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Ends the arbitration step of the current thread and enqueues all
+	 * messages published during the step. Should be called while still
+	 * holding the locks of the step, so that steps are enqueued in the order
+	 * they took place.
+	 */
+	void endStep() {
+		List<AllocationRecord.Snapshot> step = this.steps.get();
+		this.steps.remove();
+		if (step != null && !step.isEmpty()) {
+			enqueue(step);
+		}
+	}
+
+	private void enqueue(List<AllocationRecord.Snapshot> step) {
+		try {
+			this.ring.put(step);
+		} catch (InterruptedException ex) {
+			LOG.log(Level.WARNING, "Publish allocation ''{0}'' interrupted", step.get(0).message.getId());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<List<AllocationRecord.Snapshot>> drained = new ArrayList<>();
+		List<AllocationRecord.Snapshot> batch = new ArrayList<>();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				drained.add(this.ring.take());
+				if (this.window > 0) {
+					MICROSECONDS.sleep(this.window);
+				}
+				this.ring.drainTo(drained);
+				for (List<AllocationRecord.Snapshot> step : drained) {
+					batch.addAll(step);
+				}
+				for (AllocationRecord.Snapshot snapshot : coalesce(batch)) {
+					send(snapshot);
+				}
+				if (this.batches != null) {
+					for (List<AllocationRecord.Snapshot> step : drained) {
+						List<ResourceAllocation> changes = new ArrayList<>(step.size());
+						for (AllocationRecord.Snapshot snapshot : coalesce(step)) {
+							changes.add(snapshot.message);
+						}
+						this.batches.publishChanges(changes);
+					}
+				}
+				drained.clear();
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Keeps only the latest version of each allocation in the batch, but
+	 * every terminal version.
+	 *
+	 * @param batch the versions in the order they were enqueued
+	 * @return the versions to send
+	 */
+	static List<AllocationRecord.Snapshot> coalesce(List<AllocationRecord.Snapshot> batch) {
+		List<AllocationRecord.Snapshot> coalesced = new ArrayList<>(batch.size());
+		Map<String, Integer> pending = new HashMap<>();
+		for (AllocationRecord.Snapshot snapshot : batch) {
+			String id = snapshot.message.getId();
+			Integer previous = pending.get(id);
+			if (previous == null) {
+				previous = coalesced.size();
+				coalesced.add(snapshot);
+			} else if (coalesced.get(previous).version < snapshot.version) {
+				coalesced.set(previous, snapshot);
+			}
+			if (isTerminal(snapshot.message)) {
+				pending.remove(id);
+			} else {
+				pending.put(id, previous);
+			}
+		}
+		return coalesced;
+	}
+
+	private static boolean isTerminal(ResourceAllocation allocation) {
+		switch (allocation.getState()) {
+			case REJECTED:
+			case CANCELLED:
+			case ABORTED:
+			case RELEASED:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void send(AllocationRecord.Snapshot snapshot) {
+		ResourceAllocation allocation = snapshot.message;
+		if (!track(snapshot)) {
+			LOG.log(Level.FINE, "Outdated allocation dropped: {0}", shortString(allocation));
+			return;
+		}
+		LOG.log(Level.INFO, "Publish allocation: {0}", shortString(allocation));
+		send(this.informer, this.informer.getScope(), snapshot);
+		if (this.resources != null) {
+			for (String target : getTargets(allocation.getResourceIdsList())) {
+				send(this.resources, this.scopes.computeIfAbsent(target, t -> this.resources.getScope().concat(new Scope(t))), snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Records a version of an allocation as sent, unless a newer version of
+	 * the allocation has been sent before.
+	 *
+	 * @param snapshot the version to send
+	 * @return whether the version is to be sent
+	 */
+	boolean track(AllocationRecord.Snapshot snapshot) {
+		Long last = this.sent.get(snapshot.message.getId());
+		if (last != null && last > snapshot.version) {
+			return false;
+		}
+		this.sent.put(snapshot.message.getId(), snapshot.version);
+		return true;
+	}
+
+	private void send(Informer informer, Scope scope, AllocationRecord.Snapshot snapshot) {
+		try {
+			Event event = new Event(scope, ResourceAllocation.class, snapshot.message);
+			event.getMetaData().setUserInfo(VERSION, Long.toString(snapshot.version));
+			informer.publish(event);
+		} catch (RSBException ex) {
+			LOG.log(Level.SEVERE, "Could not publish allocation '" + shortString(snapshot.message) + "' at '" + scope + "'", ex);
+		}
+	}
+
+	/**
+	 * Derives the relative scopes to publish an allocation with the given
+	 * resources on. Scopes enclosing another one of the scopes are left out,
+	 * since events are delivered to the subscribers of enclosing scopes
+	 * anyway.
+	 *
+	 * @param resources the resource ids
+	 * @return the deepest resource scopes
+	 */
+	static Set<String> getTargets(List<String> resources) {
+		Set<String> scopes = new LinkedHashSet<>();
+		for (String resource : resources) {
+			scopes.add(getScope(resource));
+		}
+		Set<String> targets = new LinkedHashSet<>();
+		search:
+		for (String scope : scopes) {
+			for (String other : scopes) {
+				if (!other.equals(scope) && other.startsWith(scope)) {
+					continue search;
+				}
+			}
+			targets.add(scope);
+		}
+		return targets;
+	}
+
+	/**
+	 * Derives a relative scope from a resource id, e.g.
+	 * <code>/robot/arm/</code> for <code>/robot/arm</code>. Characters that
+	 * are not allowed in scopes are replaced by <code>_</code>.
+	 *
+	 * @param resource the resource id
+	 * @return the scope of the resource
+	 */
+	static String getScope(String resource) {
+		StringBuilder scope = new StringBuilder("/");
+		for (String component : resource.split("/")) {
+			if (!component.isEmpty()) {
+				scope.append(component.replaceAll("[^a-zA-Z0-9_-]", "_")).append('/');
+			}
+		}
+		return scope.toString();
+	}
+}
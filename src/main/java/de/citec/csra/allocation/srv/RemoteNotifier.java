@@ -1,4 +1,4 @@
-/* 
+/*
  * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
  *
  * This program is free software: you can redistribute it and/or modify
@@ -16,177 +16,149 @@
  */
 package de.citec.csra.allocation.srv;
 
-import static de.citec.csra.rst.util.IntervalUtils.currentTimeInMicros;
-import static de.citec.csra.rst.util.StringRepresentation.shortString;
 import java.util.logging.Level;
-import static java.util.logging.Level.FINE;
-import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
-import rsb.Informer;
-import rsb.RSBException;
-import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
 import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
 import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
 import rst.timing.IntervalType.Interval;
 
 /**
+ * Publishes an allocation and drives its lifecycle.
+ *
+ * Instead of a thread waiting for the slot to begin and to end, the notifier
+ * keeps a single timer on the clock of the registry for the next transition:
+ * the confirmation timeout of a request, the begin of a scheduled slot or the
+ * end of an allocated slot. Whenever the allocation is updated, the timer is
+ * rescheduled.
  *
  * @author Patrick Holthaus
  * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
  */
-public class RemoteNotifier implements Runnable {
+public class RemoteNotifier {
 
 	private final static Logger LOG = Logger.getLogger(RemoteNotifier.class.getName());
+	private final static long CONFIRMATION_TIMEOUT = 2000000;
 
-	private final Informer informer;
+	private final Publisher publisher;
 	private final String id;
-	private final Object monitor = new Object();
+	private final Allocations allocations;
+	private Clock.Timer timer;
+	private Clock.Timer confirmation;
+	private boolean cancelled;
 
-	public RemoteNotifier(Informer informer, String id) {
-		this.informer = informer;
+	RemoteNotifier(Publisher publisher, String id, Allocations allocations) {
+		this.publisher = publisher;
 		this.id = id;
+		this.allocations = allocations;
 	}
 
-	private Interval getSlot() {
-		return Allocations.getInstance().getSlot(id);
+	/**
+	 * Publishes the initial state of the allocation and starts its lifecycle.
+	 * Requests that are not scheduled within the confirmation timeout are
+	 * rejected.
+	 */
+	public void start() {
+		State initial = this.allocations.getState(this.id);
+		if (initial == null) {
+			LOG.log(Level.WARNING, "No initial state found, discarding id ''{0}''", this.id);
+			return;
+		}
+		switch (initial) {
+			case REQUESTED:
+				Clock clock = this.allocations.getClock();
+				synchronized (this) {
+					this.confirmation = clock.schedule(this::confirm, clock.currentTimeInMicros() + CONFIRMATION_TIMEOUT);
+				}
+				break;
+			case SCHEDULED:
+				break;
+			default:
+				LOG.log(Level.WARNING, "Illegal initial state ''{0}'', discarding id ''{1}'': already monitored?", new Object[]{initial, this.id});
+				return;
+		}
+		update();
 	}
 
+	/**
+	 * Publishes the current state of the allocation and reschedules the timer
+	 * for its next transition.
+	 */
 	public void update() {
 		publish();
-		synchronized (monitor) {
-			monitor.notify();
-		}
+		reschedule();
 	}
 
-	private void publish() {
-		ResourceAllocation allocation = Allocations.getInstance().get(id);
-		try {
-			if (allocation != null) {
-				LOG.log(Level.INFO, "Publish allocation: {0}", shortString(allocation));
-				this.informer.publish(allocation);
-			} else {
-				LOG.log(Level.WARNING, "Publish allocation with id ''{0}'' ignored, no such allocation available", id);
-			}
-		} catch (RSBException ex) {
-			LOG.log(Level.SEVERE, "Could not publish current allocation '" + shortString(allocation) + "'", ex);
+	/**
+	 * Stops the lifecycle of the allocation without changing its state.
+	 */
+	public synchronized void cancel() {
+		this.cancelled = true;
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
 		}
-	}
-
-	@Override
-	public void run() {
-		try {
-
-			State initial = Allocations.getInstance().getState(id);
-			if (initial == null) {
-				LOG.log(Level.WARNING, "No initial state found: ''{0}'', discarding  id ''{1}''", new Object[]{initial, id});
-				return;
-			}
-
-			switch (initial) {
-				case REQUESTED:
-					synchronized (monitor) {
-						try {
-							monitor.wait(2000);
-						} catch (InterruptedException ex) {
-							interrupted();
-						}
-					}
-					if (!confirmState(SCHEDULED, WARNING)) {
-						Allocations.getInstance().setState(this.id, REJECTED);
-						publish();
-						return;
-					}
-					break;
-				case SCHEDULED:
-					break;
-				default:
-					LOG.log(Level.WARNING, "Illegal initial state ''{0}'', discarding id ''{1}'': already monitored?", initial);
-					return;
-			}
-
-//			wait for slot to begin
-			long wait;
-			Interval slot;
-			while ((slot = getSlot()) != null && ((wait = (slot.getBegin().getTime() - currentTimeInMicros()))  > 0)) {
-				try {
-					synchronized (monitor) {
-						monitor.wait(wait / 1000, (int) ((wait % 1000) * 1000));
-					}
-					if (!confirmState(SCHEDULED, FINE)) {
-						return;
-					}
-				} catch (InterruptedException ex) {
-					ex.printStackTrace();
-					interrupted();
-					return;
-				}
-			}
-			
-			Allocations.getInstance().setState(id, ALLOCATED);
-			publish();
-
-//			wait for slot to end
-			while ((slot = getSlot()) != null && ((wait = (slot.getEnd().getTime() - currentTimeInMicros()))  > 0)) {
-				try {
-					synchronized (monitor) {
-						monitor.wait(wait / 1000, (int) ((wait % 1000) * 1000));
-					}
-					if (!confirmState(ALLOCATED, FINE)) {
-						return;
-					}
-				} catch (InterruptedException ex) {
-					ex.printStackTrace();
-					interrupted();
-				}
-			}
-
-			Allocations.getInstance().setState(id, RELEASED);
-			publish();
-			Allocations.getInstance().remove(id);
-
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (this.confirmation != null) {
+			this.confirmation.cancel();
+			this.confirmation = null;
 		}
 	}
 
-	private void interrupted() {
-
-		State current = Allocations.getInstance().getState(id);
-		if (current == null) {
+	private synchronized void reschedule() {
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+		}
+		State state = this.allocations.getState(this.id);
+		Interval slot = this.allocations.getSlot(this.id);
+		if (this.confirmation != null && state != REQUESTED) {
+			this.confirmation.cancel();
+			this.confirmation = null;
+		}
+		if (this.cancelled || state == null || slot == null) {
 			return;
 		}
-
-		State action = null;
-		switch (current) {
-			case REQUESTED:
-				action = REJECTED;
-				break;
+		switch (state) {
 			case SCHEDULED:
-				action = CANCELLED;
+				this.timer = this.allocations.getClock().schedule(this::begin, slot.getBegin().getTime());
 				break;
 			case ALLOCATED:
-				action = ABORTED;
+				this.timer = this.allocations.getClock().schedule(this::end, slot.getEnd().getTime());
 				break;
 			default:
 				break;
 		}
+	}
+
+	private void confirm() {
+		if (this.allocations.advance(this.id, REQUESTED, REJECTED)) {
+			LOG.log(Level.WARNING, "Could not confirm state ''{0}'' for id ''{1}'' in time.", new Object[]{SCHEDULED, this.id});
+			publish();
+			this.allocations.remove(this.id);
+		}
+	}
 
-		LOG.log(Level.WARNING, "''{1}'' interrupted in state ''{0}'', shutting down.", new String[]{current.name(), id});
-		if (action != null) {
-			LOG.log(Level.WARNING, "Setting state to ''{0}''.", action.name());
-			Allocations.getInstance().setState(id, action);
+	private void begin() {
+		if (this.allocations.advance(this.id, SCHEDULED, ALLOCATED)) {
 			publish();
-			Allocations.getInstance().remove(id);
 		}
-		Thread.currentThread().interrupt();
+		reschedule();
 	}
 
-	private boolean confirmState(State state, Level level) {
-		State current = Allocations.getInstance().getState(id);
-		boolean confirmed = current != null && current.equals(state);
-		if (!confirmed) {
-			LOG.log(level, "Could not confirm state ''{0}'' for id ''{1}'': Current state is ''{2}''.", new Object[]{state, id, current});
+	private void end() {
+		if (this.allocations.advance(this.id, ALLOCATED, RELEASED)) {
+			publish();
+			this.allocations.remove(this.id);
+		} else {
+			reschedule();
+		}
+	}
+
+	private void publish() {
+		AllocationRecord.Snapshot snapshot = this.allocations.snapshot(this.id);
+		if (snapshot != null) {
+			this.publisher.publish(snapshot);
+		} else {
+			LOG.log(Level.WARNING, "Publish allocation with id ''{0}'' ignored, no such allocation available", this.id);
 		}
-		return confirmed;
 	}
 }
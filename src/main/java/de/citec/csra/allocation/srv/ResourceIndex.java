@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+
+/**
+ * Prefix trie over resource ids that maps every resource to the allocations
+ * holding it.
+ *
+ * Two resources are in conflict if one of them is a prefix of the other. A
+ * lookup therefore collects all allocations stored on the path to the
+ * requested resource (ancestors) and all allocations stored below it
+ * (descendants) instead of comparing against every stored allocation.
+ *
+ * Allocations are bucketed by priority and kept sorted by the begin of their
+ * slot in every node. Each bucket also remembers the longest slot it has ever
+ * held, so that no allocation beginning earlier than that before the window
+ * can reach into it. Lookups restricted to a range of priorities and a time
+ * window therefore only visit the allocations of these priorities that
+ * begin within the window or at most the longest slot before it.
+ *
+ * Allocations whose slot has ended are evicted from the index via
+ * {@link #expire(long)}. All entries are additionally kept in a queue ordered
+ * by the end of their slot, so that eviction only ever touches the expired
+ * entries.
+ *
+ * The index may be updated concurrently for different resource subtrees (see
+ * {@link ResourceLocks}). Nodes below the top-level segment of a resource are
+ * only modified while holding its stripe and are pruned once empty when an
+ * allocation is removed. Eviction may run while holding any stripe and
+ * therefore never prunes. Nodes down to the top-level segment are shared
+ * between stripes and are never pruned.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class ResourceIndex {
+
+	private final static Priority[] PRIORITIES = Priority.values();
+	private final Node root = new Node();
+	private final Map<String, Entry> indexed = new ConcurrentHashMap<>();
+	private final NavigableSet<Entry> expiry = new ConcurrentSkipListSet<>();
+	private final static AtomicLong SERIAL = new AtomicLong();
+	private final static Comparator<Entry> BEGIN_ORDER = Comparator.<Entry>comparingLong(e -> e.begin)
+			.thenComparing(e -> e.id)
+			.thenComparingLong(e -> e.serial);
+
+	private static class Entry implements Comparable<Entry> {
+
+		private final String id;
+		private final List<String> resources;
+		private final Priority priority;
+		private final long begin;
+		private final long end;
+		private final long serial;
+
+		private Entry(String id, List<String> resources, Priority priority, long begin, long end, long serial) {
+			this.id = id;
+			this.resources = resources;
+			this.priority = priority;
+			this.begin = begin;
+			this.end = end;
+			this.serial = serial;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			int c = Long.compare(this.end, o.end);
+			if (c == 0) {
+				c = this.id.compareTo(o.id);
+			}
+			return c != 0 ? c : Long.compare(this.serial, o.serial);
+		}
+	}
+
+	private static class Bucket {
+
+		private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>(BEGIN_ORDER);
+		private final AtomicLong longest = new AtomicLong();
+
+		private void add(Entry entry) {
+			this.longest.accumulateAndGet(entry.end - entry.begin, Math::max);
+			this.entries.add(entry);
+		}
+	}
+
+	private static class Node {
+
+		private final Map<Character, Node> children = new ConcurrentHashMap<>();
+		private final List<Bucket> buckets = new ArrayList<>(PRIORITIES.length);
+
+		private Node() {
+			for (Priority priority : PRIORITIES) {
+				this.buckets.add(new Bucket());
+			}
+		}
+
+		private Bucket getBucket(Priority priority) {
+			return this.buckets.get(priority.ordinal());
+		}
+
+		private boolean isEmpty() {
+			if (!this.children.isEmpty()) {
+				return false;
+			}
+			for (Bucket bucket : this.buckets) {
+				if (!bucket.entries.isEmpty()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Adds an allocation to the index or re-indexes it if its resources, its
+	 * priority or its slot have changed.
+	 *
+	 * @param id the allocation id
+	 * @param resources the resource ids held by the allocation
+	 * @param priority the priority of the allocation
+	 * @param begin the begin of the allocation's slot
+	 * @param end the end of the allocation's slot
+	 */
+	void add(String id, List<String> resources, Priority priority, long begin, long end) {
+		Entry previous = this.indexed.get(id);
+		if (previous != null) {
+			if (previous.begin == begin && previous.end == end && previous.priority == priority && previous.resources.equals(resources)
+					&& this.expiry.contains(previous)) {
+				return;
+			}
+			remove(id);
+		}
+		Entry entry = new Entry(id, new ArrayList<>(resources), priority, begin, end, SERIAL.incrementAndGet());
+		for (String resource : entry.resources) {
+			Node node = this.root;
+			for (int i = 0; i < resource.length(); i++) {
+				node = node.children.computeIfAbsent(resource.charAt(i), c -> new Node());
+			}
+			node.getBucket(priority).add(entry);
+		}
+		this.indexed.put(id, entry);
+		this.expiry.add(entry);
+	}
+
+	/**
+	 * Removes an allocation from the index and prunes the nodes that are no
+	 * longer needed. Must be called while holding the locks for the
+	 * resources of the allocation.
+	 *
+	 * @param id the allocation id
+	 */
+	void remove(String id) {
+		Entry entry = this.indexed.remove(id);
+		if (entry != null) {
+			unlink(entry, true);
+		}
+	}
+
+	/**
+	 * Evicts all allocations whose slot ended before the given time. Evicted
+	 * allocations are no longer found by lookups, but remain known to the
+	 * index until they are removed.
+	 *
+	 * @param now the current time
+	 */
+	void expire(long now) {
+		Entry upper = new Entry("", null, null, Long.MIN_VALUE, now, Long.MIN_VALUE);
+		for (Entry expired : this.expiry.headSet(upper, false)) {
+			if (this.expiry.remove(expired)) {
+				unlink(expired, false);
+			}
+		}
+	}
+
+	private void unlink(Entry entry, boolean prune) {
+		this.expiry.remove(entry);
+		for (String resource : entry.resources) {
+			Node[] path = new Node[resource.length() + 1];
+			Node node = this.root;
+			path[0] = node;
+			for (int i = 0; i < resource.length() && node != null; i++) {
+				node = node.children.get(resource.charAt(i));
+				path[i + 1] = node;
+			}
+			if (node != null) {
+				node.getBucket(entry.priority).entries.remove(entry);
+				if (prune) {
+					prune(resource, path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the empty nodes at the end of the path of a resource, up to the
+	 * node that completes its top-level segment, see
+	 * {@link ResourceLocks#getStripe(String)}.
+	 *
+	 * @param resource the resource id
+	 * @param path the nodes for every prefix of the resource, starting with
+	 * the root
+	 */
+	private void prune(String resource, Node[] path) {
+		int begin = resource.startsWith("/") ? 1 : 0;
+		int segment = resource.indexOf('/', begin);
+		if (segment < 0) {
+			return;
+		}
+		for (int i = resource.length() - 1; i >= segment; i--) {
+			Node node = path[i + 1];
+			if (!node.isEmpty()) {
+				return;
+			}
+			path[i].children.remove(resource.charAt(i), node);
+		}
+	}
+
+	/**
+	 * Counts the nodes of the trie, including the root.
+	 *
+	 * @return the number of nodes
+	 */
+	int getNodeCount() {
+		int count = 0;
+		LinkedList<Node> open = new LinkedList<>();
+		open.add(this.root);
+		while (!open.isEmpty()) {
+			Node next = open.poll();
+			count++;
+			open.addAll(next.children.values());
+		}
+		return count;
+	}
+
+	/**
+	 * Collects the ids of all allocations holding a resource that is a prefix
+	 * of one of the given resources or that has one of the given resources as
+	 * a prefix.
+	 *
+	 * @param resources the resource ids to check
+	 * @return the ids of all conflicting allocations
+	 */
+	Set<String> getConflicting(List<String> resources) {
+		return getConflicting(resources, Long.MIN_VALUE, Long.MAX_VALUE, PRIORITIES[0], PRIORITIES[PRIORITIES.length - 1]);
+	}
+
+	/**
+	 * Collects the ids of all conflicting allocations within the given range
+	 * of priorities whose slot touches the given time window.
+	 *
+	 * @param resources the resource ids to check
+	 * @param from the begin of the time window
+	 * @param to the end of the time window
+	 * @param lowest the lowest priority to include
+	 * @param highest the highest priority to include
+	 * @return the ids of all conflicting allocations within the window
+	 */
+	Set<String> getConflicting(List<String> resources, long from, long to, Priority lowest, Priority highest) {
+		Set<String> conflicting = new HashSet<>();
+		if (lowest.compareTo(highest) > 0) {
+			return conflicting;
+		}
+		for (String resource : resources) {
+			Node node = this.root;
+			collect(node, from, to, lowest, highest, conflicting);
+			for (int i = 0; i < resource.length() && node != null; i++) {
+				node = node.children.get(resource.charAt(i));
+				if (node != null) {
+					collect(node, from, to, lowest, highest, conflicting);
+				}
+			}
+			if (node != null) {
+				LinkedList<Node> open = new LinkedList<>(node.children.values());
+				while (!open.isEmpty()) {
+					Node next = open.poll();
+					collect(next, from, to, lowest, highest, conflicting);
+					open.addAll(next.children.values());
+				}
+			}
+		}
+		return conflicting;
+	}
+
+	private void collect(Node node, long from, long to, Priority lowest, Priority highest, Set<String> ids) {
+		for (int p = lowest.ordinal(); p <= highest.ordinal(); p++) {
+			Bucket bucket = node.buckets.get(p);
+			long earliest = from - bucket.longest.get();
+			if (earliest > from) {
+				earliest = Long.MIN_VALUE;
+			}
+			Entry lower = new Entry("", null, null, earliest, Long.MIN_VALUE, Long.MIN_VALUE);
+			for (Entry entry : bucket.entries.tailSet(lower, true)) {
+				if (entry.begin > to) {
+					break;
+				}
+				if (entry.end >= from) {
+					ids.add(entry.id);
+				}
+			}
+		}
+	}
+}
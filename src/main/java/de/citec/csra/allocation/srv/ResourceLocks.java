@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lock manager that follows the resource tree.
+ *
+ * Resources are striped by their top-level path segment, e.g.
+ * <code>/robot/arm/left</code> and <code>/robot/speech</code> share a stripe
+ * while <code>/kitchen/light</code> uses a different one. Since conflicting
+ * resource ids always share their top-level segment, requests on different
+ * stripes can be arbitrated in parallel. Stripes are always acquired in
+ * ascending order, so requests spanning several subtrees do not deadlock.
+ *
+ * Resources without a complete top-level segment (like
+ * <code>some-resource</code> or <code>/robot</code>) may be a prefix of
+ * resources in any number of subtrees. They lock the whole tree exclusively.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+class ResourceLocks {
+
+	private final static int STRIPES = 64;
+	private final ReentrantReadWriteLock tree = new ReentrantReadWriteLock();
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+	ResourceLocks() {
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Calculates the stripe of a resource id.
+	 *
+	 * @param resource the resource id
+	 * @return the stripe of the resource or <code>-1</code> if the resource
+	 * requires the whole tree
+	 */
+	static int getStripe(String resource) {
+		int begin = resource.startsWith("/") ? 1 : 0;
+		int end = resource.indexOf('/', begin);
+		if (end < 0) {
+			return -1;
+		} else {
+			return (resource.substring(begin, end).hashCode() & Integer.MAX_VALUE) % STRIPES;
+		}
+	}
+
+	/**
+	 * Acquires the locks for the given resources. Blocks until all locks are
+	 * available.
+	 *
+	 * @param resources the resources to lock
+	 * @return the acquired locks, to be released by the caller
+	 */
+	Held acquire(Collection<String> resources) {
+		TreeSet<Integer> required = new TreeSet<>();
+		boolean exclusive = false;
+		for (String resource : resources) {
+			int stripe = getStripe(resource);
+			if (stripe < 0) {
+				exclusive = true;
+				break;
+			}
+			required.add(stripe);
+		}
+
+		if (exclusive) {
+			if (this.tree.getReadHoldCount() > 0 && !this.tree.isWriteLockedByCurrentThread()) {
+				throw new IllegalStateException("cannot lock resource tree exclusively while holding a stripe");
+			}
+			this.tree.writeLock().lock();
+			return new Held(true, new int[0]);
+		} else {
+			this.tree.readLock().lock();
+			int[] held = new int[required.size()];
+			int i = 0;
+			for (int stripe : required) {
+				this.stripes[stripe].lock();
+				held[i++] = stripe;
+			}
+			return new Held(false, held);
+		}
+	}
+
+	/**
+	 * A set of locks acquired by a single thread.
+	 */
+	class Held {
+
+		private final boolean exclusive;
+		private final int[] stripes;
+
+		private Held(boolean exclusive, int[] stripes) {
+			this.exclusive = exclusive;
+			this.stripes = stripes;
+		}
+
+		/**
+		 * Checks whether the given resources are protected by these locks.
+		 *
+		 * @param resources the resources to check
+		 * @return whether all resources are protected
+		 */
+		boolean covers(Collection<String> resources) {
+			if (this.exclusive) {
+				return true;
+			}
+			search:
+			for (String resource : resources) {
+				int stripe = getStripe(resource);
+				if (stripe < 0) {
+					return false;
+				}
+				for (int s : this.stripes) {
+					if (s == stripe) {
+						continue search;
+					}
+				}
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Releases all locks in reverse order of acquisition.
+		 */
+		void release() {
+			if (this.exclusive) {
+				tree.writeLock().unlock();
+			} else {
+				for (int i = this.stripes.length - 1; i >= 0; i--) {
+					ResourceLocks.this.stripes[this.stripes[i]].unlock();
+				}
+				tree.readLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import rst.timing.IntervalType.Interval;
+
+/**
+ * Outcome of a simulated arbitration, see
+ * {@link Allocations#simulate(rst.communicationpatterns.ResourceAllocationType.ResourceAllocation)}.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class Simulation {
+
+	private final State state;
+	private final Interval slot;
+	final Map<String, Interval> shifted = new LinkedHashMap<>();
+	final Map<String, State> terminated = new LinkedHashMap<>();
+
+	Simulation(State state, Interval slot) {
+		this.state = state;
+		this.slot = slot;
+	}
+
+	/**
+	 * Returns the state the simulated allocation would end up in, e.g.
+	 * <code>SCHEDULED</code> or <code>REJECTED</code>.
+	 *
+	 * @return the resulting state
+	 */
+	public State getState() {
+		return this.state;
+	}
+
+	/**
+	 * Returns the slot the simulated allocation would get.
+	 *
+	 * @return the resulting slot or <code>null</code> if the allocation would
+	 * be rejected
+	 */
+	public Interval getSlot() {
+		return this.slot;
+	}
+
+	/**
+	 * Returns the allocations that would be moved to a different slot.
+	 *
+	 * @return the new slots by allocation id
+	 */
+	public Map<String, Interval> getShifted() {
+		return Collections.unmodifiableMap(this.shifted);
+	}
+
+	/**
+	 * Returns the allocations that would be cancelled or aborted.
+	 *
+	 * @return the resulting states by allocation id
+	 */
+	public Map<String, State> getTerminated() {
+		return Collections.unmodifiableMap(this.terminated);
+	}
+}
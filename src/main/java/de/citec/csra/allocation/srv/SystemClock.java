@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import de.citec.csra.rst.util.IntervalUtils;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Clock that follows the system time. Tasks are run by a small pool of
+ * scheduler threads, independent of the number of scheduled tasks.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class SystemClock implements Clock {
+
+	private final static int THREADS = 2;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	public SystemClock() {
+		this.scheduler = new ScheduledThreadPoolExecutor(THREADS);
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	@Override
+	public long currentTimeInMicros() {
+		return IntervalUtils.currentTimeInMicros();
+	}
+
+	@Override
+	public Timer schedule(Runnable task, long time) {
+		ScheduledFuture<?> f = this.scheduler.schedule(task, time - currentTimeInMicros(), MICROSECONDS);
+		return () -> f.cancel(false);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clock with virtual time that only advances when told to.
+ *
+ * The clock can be advanced by a fixed amount or directly to the earliest
+ * pending task. Tasks that become due are run by the advancing thread in
+ * order of their time before the call returns. This allows replaying long
+ * allocation traces without waiting in real time.
+ *
+ * If created with a quiescence period, the clock advances to the earliest
+ * pending task on its own whenever no task has been scheduled for that period
+ * of real time, i.e. when the arbitration has settled.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class VirtualClock implements Clock {
+
+	private final static Logger LOG = Logger.getLogger(VirtualClock.class.getName());
+
+	private long now;
+	private long sequence;
+	private long activity;
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+
+	private static class Task implements Comparable<Task> {
+
+		private final long time;
+		private final long sequence;
+		private final Runnable runnable;
+
+		private Task(long time, long sequence, Runnable runnable) {
+			this.time = time;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public int compareTo(Task o) {
+			int c = Long.compare(this.time, o.time);
+			return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+		}
+	}
+
+	/**
+	 * Creates a clock that is advanced manually.
+	 *
+	 * @param start the initial time in microseconds
+	 */
+	public VirtualClock(long start) {
+		this.now = start;
+	}
+
+	/**
+	 * Creates a clock that advances to the next pending task on its own after
+	 * the given period of inactivity.
+	 *
+	 * @param start the initial time in microseconds
+	 * @param quiescence the period of inactivity in milliseconds of real time
+	 */
+	public VirtualClock(long start, long quiescence) {
+		this(start);
+		Thread t = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					synchronized (this) {
+						long seen = this.activity;
+						wait(quiescence);
+						if (seen != this.activity || this.tasks.isEmpty()) {
+							continue;
+						}
+					}
+					advanceToNextDeadline();
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}, "virtual-clock");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public synchronized long currentTimeInMicros() {
+		return this.now;
+	}
+
+	@Override
+	public synchronized Timer schedule(Runnable runnable, long time) {
+		Task task = new Task(time, this.sequence++, runnable);
+		this.tasks.add(task);
+		this.activity++;
+		return () -> {
+			synchronized (this) {
+				this.tasks.remove(task);
+			}
+		};
+	}
+
+	/**
+	 * Advances the clock by the given amount of time and runs all tasks that
+	 * have become due.
+	 *
+	 * @param micros the time to advance in microseconds
+	 * @return the new time
+	 */
+	public long advance(long micros) {
+		long time;
+		synchronized (this) {
+			this.now += micros;
+			time = this.now;
+		}
+		runDue();
+		return time;
+	}
+
+	/**
+	 * Advances the clock to the earliest pending task, if it lies in the
+	 * future, and runs all tasks that have become due.
+	 *
+	 * @return the new time
+	 */
+	public long advanceToNextDeadline() {
+		long time;
+		synchronized (this) {
+			if (!this.tasks.isEmpty()) {
+				this.now = Math.max(this.now, this.tasks.peek().time);
+			}
+			time = this.now;
+		}
+		runDue();
+		return time;
+	}
+
+	private void runDue() {
+		List<Task> due = new ArrayList<>();
+		do {
+			due.clear();
+			synchronized (this) {
+				while (!this.tasks.isEmpty() && this.tasks.peek().time <= this.now) {
+					due.add(this.tasks.poll());
+				}
+				this.activity++;
+			}
+			for (Task task : due) {
+				try {
+					task.runnable.run();
+				} catch (RuntimeException ex) {
+					LOG.log(Level.SEVERE, "Scheduled task failed", ex);
+				}
+			}
+		} while (!due.isEmpty());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import de.citec.csra.allocation.srv.Allocations;
+import de.citec.csra.rst.util.IntervalUtils;
+import java.util.Arrays;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rsb.InitializeException;
+import rsb.RSBException;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.MAXIMUM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+import rst.timing.IntervalType.Interval;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AvailabilityTest {
+
+	private static final long TIMEOUT = 2000;
+
+	@BeforeClass
+	public static void initServer() throws InterruptedException, RSBException {
+		TestSetup.initServer();
+	}
+
+	@Test
+	public void testEarliest() throws InitializeException, RSBException, InterruptedException, TimeoutException {
+		AllocatableResource arm = new AllocatableResource("Arm", MAXIMUM, HIGH, SYSTEM, 0, 1000, MILLISECONDS, "/availability/arm/");
+		arm.startup();
+		arm.await(TIMEOUT, MILLISECONDS, SCHEDULED);
+
+		Interval window = IntervalUtils.buildRelativeRst(0, 3000, MILLISECONDS);
+		Interval blocked = Allocations.getInstance().findEarliest(Arrays.asList("/availability/arm/left/"), NORMAL, 200000, window);
+		Interval free = Allocations.getInstance().findEarliest(Arrays.asList("/availability/leg/"), NORMAL, 200000, window);
+		Interval overruling = Allocations.getInstance().findEarliest(Arrays.asList("/availability/arm/left/"), EMERGENCY, 200000, window);
+
+		assertNotNull(blocked);
+		assertTrue(blocked.getBegin().getTime() - window.getBegin().getTime() > 500000);
+		assertNotNull(free);
+		assertTrue(free.getBegin().getTime() == window.getBegin().getTime());
+		assertNotNull(overruling);
+		assertTrue(overruling.getBegin().getTime() == window.getBegin().getTime());
+
+		arm.await(TIMEOUT, MILLISECONDS, RELEASED);
+	}
+
+	@Test
+	public void testWindowTooShort() {
+		Interval window = IntervalUtils.buildRelativeRst(0, 100, MILLISECONDS);
+		Interval earliest = Allocations.getInstance().findEarliest(Arrays.asList("/availability/short/"), NORMAL, 200000, window);
+		Interval maximal = Allocations.getInstance().findMaximal(Arrays.asList("/availability/short/"), NORMAL, 200000, window);
+
+		assertNull(earliest);
+		assertNotNull(maximal);
+		assertTrue(maximal.getEnd().getTime() <= window.getEnd().getTime());
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.TimeoutException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rsb.InitializeException;
+import rsb.RSBException;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.MAXIMUM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REJECTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class HierarchyTest {
+
+	private static final long TIMEOUT = 2000;
+
+	@BeforeClass
+	public static void initServer() throws InterruptedException, RSBException {
+		TestSetup.initServer();
+	}
+
+	@Test
+	public void testDescendant() throws InitializeException, RSBException, InterruptedException, TimeoutException {
+		AllocatableResource arm = new AllocatableResource("Arm", MAXIMUM, HIGH, SYSTEM, 0, 1000, MILLISECONDS, "/hierarchy/arm/");
+		AllocatableResource left = new AllocatableResource("Left", MAXIMUM, NORMAL, SYSTEM, 300, 200, MILLISECONDS, "/hierarchy/arm/left/");
+		AllocatableResource leg = new AllocatableResource("Leg", MAXIMUM, NORMAL, SYSTEM, 300, 200, MILLISECONDS, "/hierarchy/leg/");
+
+		arm.startup();
+		arm.await(TIMEOUT, MILLISECONDS, SCHEDULED);
+
+		left.startup();
+		leg.startup();
+
+		left.await(TIMEOUT, MILLISECONDS, REJECTED);
+		leg.await(TIMEOUT, MILLISECONDS, ALLOCATED);
+
+		arm.await(TIMEOUT, MILLISECONDS, RELEASED);
+		leg.await(TIMEOUT, MILLISECONDS, RELEASED);
+	}
+
+	@Test
+	public void testAncestor() throws InitializeException, RSBException, InterruptedException, TimeoutException {
+		AllocatableResource left = new AllocatableResource("Left", MAXIMUM, HIGH, SYSTEM, 0, 1000, MILLISECONDS, "/ancestry/arm/left/");
+		AllocatableResource arm = new AllocatableResource("Arm", MAXIMUM, NORMAL, SYSTEM, 300, 200, MILLISECONDS, "/ancestry/arm/");
+
+		left.startup();
+		left.await(TIMEOUT, MILLISECONDS, SCHEDULED);
+
+		arm.startup();
+		arm.await(TIMEOUT, MILLISECONDS, REJECTED);
+
+		left.await(TIMEOUT, MILLISECONDS, RELEASED);
+	}
+}
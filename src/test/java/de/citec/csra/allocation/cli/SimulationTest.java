@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.cli;
+
+import de.citec.csra.allocation.srv.AllocationServer;
+import de.citec.csra.allocation.srv.Allocations;
+import de.citec.csra.allocation.srv.Simulation;
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import static de.citec.csra.allocation.srv.TestAllocations.interval;
+import static de.citec.csra.rst.util.IntervalUtils.buildRelativeRst;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rsb.Factory;
+import rsb.InitializeException;
+import rsb.Listener;
+import rsb.RSBException;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.MAXIMUM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.PRESERVE;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+import rst.timing.IntervalType.Interval;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class SimulationTest {
+
+	private static final long TIMEOUT = 3000;
+	private static final String RESOURCE = "/simulation/arm/";
+
+	@BeforeClass
+	public static void initServer() throws InterruptedException, RSBException {
+		TestSetup.initServer();
+	}
+
+	private static ResourceAllocation probe(String id, Priority priority, Policy policy, long delay, long duration) {
+		return allocation(id, REQUESTED, priority, RESOURCE).setDescription(id).setPolicy(policy).
+				setSlot(buildRelativeRst(delay, duration, MILLISECONDS)).build();
+	}
+
+	private static ResourceAllocation findLive() {
+		for (ResourceAllocation allocation : Allocations.getInstance().getAll()) {
+			if (allocation.getResourceIdsList().contains(RESOURCE)) {
+				return allocation;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testSimulation() throws InitializeException, RSBException, InterruptedException, TimeoutException {
+		AllocatableResource arm = new AllocatableResource("Arm", MAXIMUM, NORMAL, SYSTEM, 1000, 1000, MILLISECONDS, RESOURCE);
+		arm.startup();
+		arm.await(TIMEOUT, MILLISECONDS, SCHEDULED);
+
+		ResourceAllocation live = findLive();
+		assertNotNull(live);
+		AtomicInteger republished = new AtomicInteger();
+		Listener listener = Factory.getInstance().createListener(AllocationServer.getScope());
+		listener.addHandler((e) -> {
+			if (e.getData() instanceof ResourceAllocation && ((ResourceAllocation) e.getData()).getId().equals(live.getId())) {
+				republished.incrementAndGet();
+			}
+		}, true);
+		listener.activate();
+
+		Simulation overlapping = Allocations.getInstance().simulate(probe("simulation-overlapping", HIGH, MAXIMUM, 1500, 1500));
+		assertEquals(SCHEDULED, overlapping.getState());
+		assertNotNull(overlapping.getSlot());
+		assertTrue(overlapping.getShifted().containsKey(live.getId()));
+		Interval shifted = overlapping.getShifted().get(live.getId());
+		assertTrue(shifted.getEnd().getTime() <= overlapping.getSlot().getBegin().getTime()
+				|| shifted.getBegin().getTime() >= overlapping.getSlot().getEnd().getTime());
+		assertTrue(overlapping.getTerminated().isEmpty());
+
+		Simulation covering = Allocations.getInstance().simulate(probe("simulation-covering", HIGH, MAXIMUM, 500, 2000));
+		assertEquals(SCHEDULED, covering.getState());
+		assertTrue(covering.getShifted().isEmpty());
+		assertEquals(CANCELLED, covering.getTerminated().get(live.getId()));
+
+		Simulation blocked = Allocations.getInstance().simulate(probe("simulation-blocked", LOW, PRESERVE, 1200, 600));
+		assertEquals(REJECTED, blocked.getState());
+		assertNull(blocked.getSlot());
+		assertTrue(blocked.getShifted().isEmpty());
+		assertTrue(blocked.getTerminated().isEmpty());
+
+		long now = Allocations.getInstance().getClock().currentTimeInMicros();
+		Simulation expired = Allocations.getInstance().simulate(allocation("simulation-expired", REQUESTED, NORMAL, RESOURCE).
+				setSlot(interval(now - 800000, now - 300000)).build());
+		assertEquals(RELEASED, expired.getState());
+		assertEquals(interval(now - 800000, now - 300000), expired.getSlot());
+		assertTrue(expired.getShifted().isEmpty());
+		assertTrue(expired.getTerminated().isEmpty());
+
+		Thread.sleep(200);
+		listener.deactivate();
+		assertEquals(live, findLive());
+		assertEquals(0, republished.get());
+
+		arm.await(TIMEOUT, MILLISECONDS, ALLOCATED);
+		arm.await(TIMEOUT, MILLISECONDS, RELEASED);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NORMAL;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AllocationServerTest {
+
+	private static ResourceAllocation message(String id, State state, String description) {
+		return allocation(id, state, NORMAL, "/coalesce/").setDescription(description).build();
+	}
+
+	@Test
+	public void testTrivial() {
+		List<ResourceAllocation> empty = Collections.emptyList();
+		List<ResourceAllocation> single = Collections.singletonList(message("single", SCHEDULED, "single"));
+		assertSame(empty, AllocationServer.coalesce(empty));
+		assertSame(single, AllocationServer.coalesce(single));
+	}
+
+	@Test
+	public void testSuccessive() {
+		ResourceAllocation request = message("a", REQUESTED, "request");
+		ResourceAllocation first = message("a", SCHEDULED, "first");
+		ResourceAllocation second = message("a", SCHEDULED, "second");
+		ResourceAllocation third = message("a", SCHEDULED, "third");
+
+		List<ResourceAllocation> coalesced = AllocationServer.coalesce(Arrays.asList(request, first, second, third));
+		assertEquals(Arrays.asList(request, third), coalesced);
+	}
+
+	@Test
+	public void testInterleaved() {
+		ResourceAllocation scheduled = message("a", SCHEDULED, "scheduled");
+		ResourceAllocation cancelled = message("a", CANCELLED, "cancelled");
+		ResourceAllocation rescheduled = message("a", SCHEDULED, "rescheduled");
+		ResourceAllocation allocated = message("b", ALLOCATED, "allocated");
+		ResourceAllocation released = message("b", RELEASED, "released");
+		ResourceAllocation reallocated = message("b", ALLOCATED, "reallocated");
+
+		List<ResourceAllocation> batch = Arrays.asList(scheduled, allocated, cancelled, released, rescheduled, reallocated);
+		assertEquals(batch, AllocationServer.coalesce(batch));
+	}
+
+	@Test
+	public void testMultipleIds() {
+		ResourceAllocation a1 = message("a", SCHEDULED, "a1");
+		ResourceAllocation b1 = message("b", ALLOCATED, "b1");
+		ResourceAllocation c = message("c", REQUESTED, "c");
+		ResourceAllocation a2 = message("a", SCHEDULED, "a2");
+		ResourceAllocation b2 = message("b", ALLOCATED, "b2");
+		ResourceAllocation aCancelled = message("a", CANCELLED, "aCancelled");
+		ResourceAllocation bReleased = message("b", RELEASED, "bReleased");
+		ResourceAllocation b3 = message("b", ALLOCATED, "b3");
+
+		List<ResourceAllocation> coalesced = AllocationServer.coalesce(Arrays.asList(a1, b1, c, a2, b2, aCancelled, bReleased, b3));
+		assertEquals(Arrays.asList(c, a2, b2, aCancelled, bReleased, b3), coalesced);
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import static de.citec.csra.allocation.srv.TestAllocations.interval;
+import static de.citec.csra.rst.util.IntervalUtils.currentTimeInMicros;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+import rst.timing.IntervalType.Interval;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class AllocationsTest {
+
+	private static final long SECOND = SECONDS.toMicros(1);
+
+	@BeforeClass
+	public static void initTransport() {
+		TestAllocations.initTransport();
+	}
+
+	private static Allocations registry(String scope, long start, ResourceAllocation... existing) {
+		Allocations allocations = Allocations.getInstance(scope);
+		allocations.setClock(new VirtualClock(start));
+		for (ResourceAllocation allocation : existing) {
+			assertTrue(allocations.handle(allocation));
+		}
+		return allocations;
+	}
+
+	private static boolean overlap(Interval a, Interval b) {
+		return a.getBegin().getTime() < b.getEnd().getTime() && b.getBegin().getTime() < a.getEnd().getTime();
+	}
+
+	@Test
+	public void testBatchMatchesSequence() {
+		long start = currentTimeInMicros();
+		ResourceAllocation high = allocation("batch-high", REQUESTED, HIGH, "/r/")
+				.setSlot(interval(start + 10 * SECOND, start + 20 * SECOND))
+				.setConstraints(interval(start, start + 60 * SECOND)).build();
+		ResourceAllocation emergency = allocation("batch-emergency", REQUESTED, EMERGENCY, "/r/x")
+				.setSlot(interval(start + 10 * SECOND, start + 20 * SECOND)).build();
+		ResourceAllocation normal = allocation("batch-normal", REQUESTED, NORMAL, "/r/y")
+				.setSlot(interval(start + 30 * SECOND, start + 40 * SECOND)).build();
+
+		Allocations batched = registry("/test/batched/", start, high);
+		Allocations sequential = registry("/test/sequential/", start, high);
+
+		List<Boolean> outcomes = batched.handle(Arrays.asList(emergency, normal));
+		List<Boolean> expected = new ArrayList<>();
+		expected.add(sequential.handle(emergency));
+		expected.add(sequential.handle(normal));
+		assertEquals(expected, outcomes);
+
+		for (String id : Arrays.asList(high.getId(), emergency.getId(), normal.getId())) {
+			assertEquals(id, sequential.isAlive(id), batched.isAlive(id));
+			assertEquals(id, sequential.getState(id), batched.getState(id));
+			assertEquals(id, sequential.getSlot(id), batched.getSlot(id));
+		}
+		if (batched.isAlive(high.getId()) && batched.isAlive(normal.getId())) {
+			assertFalse(overlap(batched.getSlot(high.getId()), batched.getSlot(normal.getId())));
+		}
+	}
+}
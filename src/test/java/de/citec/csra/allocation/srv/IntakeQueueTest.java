@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class IntakeQueueTest {
+
+	private static ResourceAllocation message(String id, State state, Priority priority) {
+		return allocation(id, state, priority, "/intake/").build();
+	}
+
+	private static List<ResourceAllocation> drain(IntakeQueue queue) throws InterruptedException {
+		List<ResourceAllocation> batch = new ArrayList<>();
+		queue.drainTo(batch);
+		return batch;
+	}
+
+	@Test
+	public void testOrder() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(8);
+		ResourceAllocation low = message("low", REQUESTED, LOW);
+		ResourceAllocation first = message("first", REQUESTED, NORMAL);
+		ResourceAllocation high = message("high", REQUESTED, HIGH);
+		ResourceAllocation second = message("second", REQUESTED, NORMAL);
+
+		assertNull(queue.put(low, false));
+		assertNull(queue.put(first, false));
+		assertNull(queue.put(high, false));
+		assertNull(queue.put(second, false));
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(4, batch.size());
+		assertSame(high, batch.get(0));
+		assertSame(first, batch.get(1));
+		assertSame(second, batch.get(2));
+		assertSame(low, batch.get(3));
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testNoOvertaking() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(8);
+		ResourceAllocation request = message("slow", REQUESTED, LOW);
+		ResourceAllocation other = message("other", REQUESTED, NORMAL);
+		ResourceAllocation cancel = message("slow", CANCELLED, EMERGENCY);
+
+		assertNull(queue.put(request, false));
+		assertNull(queue.put(other, false));
+		assertNull(queue.put(cancel, true));
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(3, batch.size());
+		assertSame(other, batch.get(0));
+		assertSame(request, batch.get(1));
+		assertSame(cancel, batch.get(2));
+	}
+
+	@Test
+	public void testDisplacement() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(2);
+		ResourceAllocation older = message("older", REQUESTED, LOW);
+		ResourceAllocation newer = message("newer", REQUESTED, LOW);
+		ResourceAllocation urgent = message("urgent", REQUESTED, URGENT);
+
+		assertNull(queue.put(older, false));
+		assertNull(queue.put(newer, false));
+		assertSame(newer, queue.put(urgent, false));
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(2, batch.size());
+		assertSame(urgent, batch.get(0));
+		assertSame(older, batch.get(1));
+	}
+
+	@Test
+	public void testRefusal() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(1);
+		ResourceAllocation high = message("high", REQUESTED, HIGH);
+		ResourceAllocation normal = message("normal", REQUESTED, NORMAL);
+		ResourceAllocation same = message("same", REQUESTED, HIGH);
+
+		assertNull(queue.put(high, false));
+		assertSame(normal, queue.put(normal, false));
+		assertSame(same, queue.put(same, false));
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void testKnownAccepted() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(1);
+		ResourceAllocation high = message("high", REQUESTED, HIGH);
+		ResourceAllocation repeated = message("live", REQUESTED, LOW);
+		ResourceAllocation release = message("live", RELEASED, LOW);
+		ResourceAllocation normal = message("normal", REQUESTED, NORMAL);
+
+		assertNull(queue.put(high, false));
+		assertNull(queue.put(repeated, true));
+		assertNull(queue.put(release, true));
+		assertEquals(3, queue.size());
+
+		// repeated requests for known allocations are never displaced
+		assertSame(normal, queue.put(normal, false));
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(3, batch.size());
+		assertSame(high, batch.get(0));
+		assertSame(repeated, batch.get(1));
+		assertSame(release, batch.get(2));
+	}
+
+	@Test
+	public void testFollowedRequestKept() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(1);
+		ResourceAllocation request = message("pending", REQUESTED, LOW);
+		ResourceAllocation modify = message("pending", SCHEDULED, LOW);
+		ResourceAllocation urgent = message("urgent", REQUESTED, URGENT);
+
+		assertNull(queue.put(request, false));
+		assertNull(queue.put(modify, true));
+
+		// the request has a follow-up and must not be dropped underneath it
+		assertSame(urgent, queue.put(urgent, false));
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(2, batch.size());
+		assertSame(request, batch.get(0));
+		assertSame(modify, batch.get(1));
+	}
+
+	@Test
+	public void testKnownCoalesced() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(1);
+		ResourceAllocation high = message("high", REQUESTED, HIGH);
+		ResourceAllocation first = allocation("live", SCHEDULED, NORMAL, "/intake/").setDescription("first").build();
+		ResourceAllocation second = allocation("live", SCHEDULED, NORMAL, "/intake/").setDescription("second").build();
+		ResourceAllocation release = message("live", RELEASED, LOW);
+		ResourceAllocation duplicate = message("live", RELEASED, LOW);
+
+		assertNull(queue.put(high, false));
+		assertNull(queue.put(first, true));
+		assertNull(queue.put(second, true));
+		assertEquals(2, queue.size());
+		assertNull(queue.put(release, true));
+		assertNull(queue.put(duplicate, true));
+		assertEquals(3, queue.size());
+
+		List<ResourceAllocation> batch = drain(queue);
+		assertEquals(3, batch.size());
+		assertSame(high, batch.get(0));
+		assertSame(second, batch.get(1));
+		assertSame(release, batch.get(2));
+	}
+
+	@Test
+	public void testKnownLimit() throws InterruptedException {
+		IntakeQueue queue = new IntakeQueue(1);
+		for (int i = 0; i < 4; i++) {
+			assertNull(queue.put(message("live-" + i, RELEASED, NORMAL), true));
+		}
+		ResourceAllocation refused = message("live-4", RELEASED, NORMAL);
+		assertSame(refused, queue.put(refused, true));
+		assertEquals(4, queue.size());
+
+		ResourceAllocation modify = message("live-0", SCHEDULED, NORMAL);
+		assertSame(modify, queue.put(modify, true));
+		ResourceAllocation duplicate = message("live-0", RELEASED, NORMAL);
+		assertNull(queue.put(duplicate, true));
+		assertEquals(4, queue.size());
+	}
+}
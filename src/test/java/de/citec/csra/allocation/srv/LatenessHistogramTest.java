@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class LatenessHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatenessHistogram histogram = new LatenessHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testBuckets() {
+		LatenessHistogram histogram = new LatenessHistogram();
+		histogram.record(0);
+		histogram.record(-5);
+		histogram.record(1);
+		histogram.record(3);
+		histogram.record(1000);
+		histogram.record(Long.MAX_VALUE / 2);
+
+		long[] buckets = histogram.getBuckets();
+		assertEquals(2, buckets[0]);
+		assertEquals(1, buckets[1]);
+		assertEquals(1, buckets[2]);
+		assertEquals(1, buckets[10]);
+		assertEquals(1, buckets[buckets.length - 1]);
+		assertEquals(6, histogram.getCount());
+		assertEquals(Long.MAX_VALUE / 2, histogram.getMax());
+	}
+
+	@Test
+	public void testStatistics() {
+		LatenessHistogram histogram = new LatenessHistogram();
+		histogram.record(0);
+		histogram.record(1);
+		histogram.record(3);
+		histogram.record(1000);
+
+		assertEquals(4, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(251, histogram.getMean(), 0.001);
+		assertEquals(0, histogram.getPercentile(25));
+		assertEquals(1, histogram.getPercentile(50));
+		assertEquals(3, histogram.getPercentile(75));
+		assertEquals(1023, histogram.getPercentile(100));
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PreciseClockTest {
+
+	@Test
+	public void testMonotonic() {
+		PreciseClock clock = new PreciseClock();
+		long previous = clock.currentTimeInMicros();
+		assertTrue(Math.abs(previous - System.currentTimeMillis() * 1000) < 100000);
+		for (int i = 0; i < 100000; i++) {
+			long now = clock.currentTimeInMicros();
+			assertTrue(now >= previous);
+			previous = now;
+		}
+	}
+
+	@Test
+	public void testDeadlines() throws InterruptedException {
+		PreciseClock clock = new PreciseClock();
+		int tasks = 20;
+		long start = clock.currentTimeInMicros() + 50000;
+		long[] deadlines = new long[tasks];
+		long[] runs = new long[tasks];
+		CountDownLatch done = new CountDownLatch(tasks);
+		for (int i = tasks - 1; i >= 0; i--) {
+			int task = i;
+			deadlines[i] = start + i * 5000;
+			clock.schedule(() -> {
+				runs[task] = clock.currentTimeInMicros();
+				done.countDown();
+			}, deadlines[i]);
+		}
+		assertTrue(done.await(5, SECONDS));
+
+		LatenessHistogram lateness = new LatenessHistogram();
+		for (int i = 0; i < tasks; i++) {
+			assertTrue(runs[i] >= deadlines[i]);
+			lateness.record(runs[i] - deadlines[i]);
+		}
+		assertTrue(lateness.toString(), lateness.getPercentile(50) < 5000);
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		PreciseClock clock = new PreciseClock();
+		List<String> ran = new CopyOnWriteArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+		long now = clock.currentTimeInMicros();
+		Clock.Timer cancelled = clock.schedule(() -> ran.add("cancelled"), now + 20000);
+		clock.schedule(() -> ran.add("past"), now - 1000000);
+		clock.schedule(() -> {
+			ran.add("kept");
+			done.countDown();
+		}, now + 40000);
+		cancelled.cancel();
+		assertTrue(done.await(5, SECONDS));
+		assertFalse(ran.contains("cancelled"));
+		assertEquals(2, ran.size());
+	}
+}
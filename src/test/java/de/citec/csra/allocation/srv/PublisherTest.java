@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NORMAL;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.ALLOCATED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.RELEASED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.REQUESTED;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.SCHEDULED;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class PublisherTest {
+
+	@Test
+	public void testScope() {
+		assertEquals("/robot/arm/", Publisher.getScope("/robot/arm"));
+		assertEquals("/robot/arm/", Publisher.getScope("robot//arm/"));
+		assertEquals("/some-res/", Publisher.getScope("some-res"));
+		assertEquals("/robot/arm_left/", Publisher.getScope("/robot/arm.left"));
+	}
+
+	@Test
+	public void testTargets() {
+		assertEquals(Collections.singleton("/robot/arm/left/"),
+				Publisher.getTargets(Arrays.asList("/robot/arm", "/robot/arm/left", "/robot/")));
+		assertEquals(new LinkedHashSet<>(Arrays.asList("/robot/arm/", "/kitchen/")),
+				Publisher.getTargets(Arrays.asList("/robot/arm", "/kitchen", "/robot/arm/")));
+		assertEquals(new LinkedHashSet<>(Arrays.asList("/robot/arm/", "/robot/armchair/")),
+				Publisher.getTargets(Arrays.asList("/robot/arm", "/robot/armchair")));
+	}
+
+	@Test
+	public void testCoalesceLatest() {
+		AllocationRecord.Snapshot a1 = snapshot("a", 1, REQUESTED);
+		AllocationRecord.Snapshot b1 = snapshot("b", 1, REQUESTED);
+		AllocationRecord.Snapshot a2 = snapshot("a", 2, SCHEDULED);
+		AllocationRecord.Snapshot a3 = snapshot("a", 3, ALLOCATED);
+
+		List<AllocationRecord.Snapshot> coalesced = Publisher.coalesce(Arrays.asList(a1, b1, a3, a2));
+		assertEquals(2, coalesced.size());
+		assertSame(a3, coalesced.get(0));
+		assertSame(b1, coalesced.get(1));
+	}
+
+	@Test
+	public void testCoalesceTerminal() {
+		AllocationRecord.Snapshot a1 = snapshot("a", 1, ALLOCATED);
+		AllocationRecord.Snapshot a2 = snapshot("a", 2, RELEASED);
+		AllocationRecord.Snapshot a3 = snapshot("a", 1, REQUESTED);
+		AllocationRecord.Snapshot a4 = snapshot("a", 2, SCHEDULED);
+		AllocationRecord.Snapshot a5 = snapshot("a", 3, RELEASED);
+		AllocationRecord.Snapshot a6 = snapshot("a", 1, RELEASED);
+
+		List<AllocationRecord.Snapshot> coalesced = Publisher.coalesce(Arrays.asList(a1, a2, a3, a4, a5, a6));
+		assertEquals(3, coalesced.size());
+		assertSame(a2, coalesced.get(0));
+		assertSame(a5, coalesced.get(1));
+		assertSame(a6, coalesced.get(2));
+	}
+
+	@Test
+	public void testOutdated() {
+		Publisher publisher = new Publisher(null, "test", 0, null, null);
+		assertTrue(publisher.track(snapshot("a", 2, SCHEDULED)));
+		assertFalse(publisher.track(snapshot("a", 1, REQUESTED)));
+		assertTrue(publisher.track(snapshot("a", 2, SCHEDULED)));
+		assertTrue(publisher.track(snapshot("b", 1, REQUESTED)));
+		assertTrue(publisher.track(snapshot("a", 3, ALLOCATED)));
+		assertFalse(publisher.track(snapshot("a", 2, SCHEDULED)));
+	}
+
+	private static AllocationRecord.Snapshot snapshot(String id, long version, State state) {
+		return new AllocationRecord.Snapshot(version, allocation(id, state, NORMAL, "/res/").build());
+	}
+}
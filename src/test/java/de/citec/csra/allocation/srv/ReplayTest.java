@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.allocation.srv.TestAllocations.allocation;
+import static de.citec.csra.allocation.srv.TestAllocations.interval;
+import static de.citec.csra.rst.util.IntervalUtils.currentTimeInMicros;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.*;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State.*;
+
+/**
+ * Replays allocations with long slots on a virtual clock.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ReplayTest {
+
+	private static final long MINUTE = SECONDS.toMicros(60);
+
+	@BeforeClass
+	public static void initTransport() {
+		TestAllocations.initTransport();
+	}
+
+	private static ResourceAllocation request(String id, Priority priority, long begin, long end) {
+		return allocation(id, REQUESTED, priority, "/replay/arm/").setSlot(interval(begin, end)).build();
+	}
+
+	@Test
+	public void testMinuteSlots() {
+		long start = currentTimeInMicros();
+		VirtualClock clock = new VirtualClock(start);
+		Allocations allocations = Allocations.getInstance("/test/replay/");
+		allocations.setClock(clock);
+
+		assertTrue(allocations.handle(request("replay-low", NORMAL, start, start + MINUTE)));
+		assertEquals(SCHEDULED, allocations.getState("replay-low"));
+
+		assertEquals(start, clock.advanceToNextDeadline());
+		assertEquals(ALLOCATED, allocations.getState("replay-low"));
+
+		// a more important request arrives while the first slot is running
+		clock.advance(SECONDS.toMicros(20));
+		assertTrue(allocations.handle(request("replay-high", HIGH, start + MINUTE / 2, start + MINUTE * 3 / 2)));
+		assertEquals(SCHEDULED, allocations.getState("replay-high"));
+		assertEquals(ALLOCATED, allocations.getState("replay-low"));
+		assertEquals(start, allocations.getSlot("replay-low").getBegin().getTime());
+		assertEquals(start + MINUTE / 2, allocations.getSlot("replay-low").getEnd().getTime());
+
+		assertEquals(start + MINUTE / 2, clock.advanceToNextDeadline());
+		assertFalse(allocations.isAlive("replay-low"));
+		assertEquals(ALLOCATED, allocations.getState("replay-high"));
+
+		assertEquals(start + MINUTE * 3 / 2, clock.advanceToNextDeadline());
+		assertFalse(allocations.isAlive("replay-high"));
+
+		assertEquals(2, allocations.getLateness(ALLOCATED).getCount());
+		assertEquals(0, allocations.getLateness(ALLOCATED).getMax());
+		assertEquals(2, allocations.getLateness(RELEASED).getCount());
+		assertEquals(0, allocations.getLateness(RELEASED).getMax());
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.EMERGENCY;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.HIGH;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.LOW;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NO;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority.NORMAL;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ResourceIndexTest {
+
+	@Test
+	public void testPrefixes() {
+		ResourceIndex index = new ResourceIndex();
+		index.add("root", Arrays.asList("/robot/"), NORMAL, 0, 100);
+		index.add("arm", Arrays.asList("/robot/arm"), NORMAL, 0, 100);
+		index.add("left", Arrays.asList("/robot/arm/left"), NORMAL, 0, 100);
+		index.add("leg", Arrays.asList("/robot/leg"), NORMAL, 0, 100);
+		index.add("other", Arrays.asList("/robotics/"), NORMAL, 0, 100);
+
+		assertEquals(new HashSet<>(Arrays.asList("root", "arm", "left")), index.getConflicting(Arrays.asList("/robot/arm")));
+		assertEquals(new HashSet<>(Arrays.asList("root", "arm", "left", "leg")), index.getConflicting(Arrays.asList("/robot/")));
+		assertEquals(new HashSet<>(Arrays.asList("root", "leg")), index.getConflicting(Arrays.asList("/robot/leg/right")));
+		assertEquals(new HashSet<>(Arrays.asList("root", "arm", "left", "leg", "other")), index.getConflicting(Arrays.asList("/robot")));
+		assertEquals(Collections.emptySet(), index.getConflicting(Arrays.asList("/speaker/")));
+	}
+
+	@Test
+	public void testPriorities() {
+		ResourceIndex index = new ResourceIndex();
+		index.add("no", Arrays.asList("/res/"), NO, 0, 100);
+		index.add("low", Arrays.asList("/res/"), LOW, 0, 100);
+		index.add("normal", Arrays.asList("/res/"), NORMAL, 0, 100);
+		index.add("high", Arrays.asList("/res/"), HIGH, 0, 100);
+
+		assertEquals(new HashSet<>(Arrays.asList("low", "normal")), index.getConflicting(Arrays.asList("/res/"), 0, 100, LOW, NORMAL));
+		assertEquals(new HashSet<>(Arrays.asList("high")), index.getConflicting(Arrays.asList("/res/"), 0, 100, HIGH, EMERGENCY));
+		assertEquals(Collections.emptySet(), index.getConflicting(Arrays.asList("/res/"), 0, 100, HIGH, LOW));
+	}
+
+	@Test
+	public void testWindow() {
+		ResourceIndex index = new ResourceIndex();
+		index.add("long", Arrays.asList("/res/"), NORMAL, 0, 1000);
+		index.add("early", Arrays.asList("/res/"), NORMAL, 100, 200);
+		index.add("late", Arrays.asList("/res/"), NORMAL, 600, 700);
+
+		assertEquals(new HashSet<>(Arrays.asList("long", "early")), index.getConflicting(Arrays.asList("/res/"), 150, 300, NO, EMERGENCY));
+		assertEquals(new HashSet<>(Arrays.asList("long", "late")), index.getConflicting(Arrays.asList("/res/"), 700, 800, NO, EMERGENCY));
+		assertEquals(Collections.emptySet(), index.getConflicting(Arrays.asList("/res/"), 1001, 2000, NO, EMERGENCY));
+
+		index.add("early", Arrays.asList("/res/"), NORMAL, 900, 950);
+		assertEquals(new HashSet<>(Arrays.asList("long")), index.getConflicting(Arrays.asList("/res/"), 150, 300, NO, EMERGENCY));
+	}
+
+	@Test
+	public void testExpire() {
+		ResourceIndex index = new ResourceIndex();
+		index.add("past", Arrays.asList("/res/"), NORMAL, 0, 100);
+		index.add("current", Arrays.asList("/res/"), NORMAL, 50, 300);
+
+		index.expire(200);
+		assertEquals(new HashSet<>(Arrays.asList("current")), index.getConflicting(Arrays.asList("/res/")));
+
+		index.add("past", Arrays.asList("/res/"), NORMAL, 0, 100);
+		assertEquals(new HashSet<>(Arrays.asList("past", "current")), index.getConflicting(Arrays.asList("/res/")));
+
+		index.expire(400);
+		assertEquals(Collections.emptySet(), index.getConflicting(Arrays.asList("/res/")));
+	}
+
+	@Test
+	public void testPrune() {
+		ResourceIndex index = new ResourceIndex();
+		index.add("shared", Arrays.asList("/robot"), NORMAL, 0, 100);
+		int initial = index.getNodeCount();
+
+		index.add("arm", Arrays.asList("/robot/arm/left", "/robot/arm"), NORMAL, 0, 100);
+		index.add("leg", Arrays.asList("/robot/leg"), NORMAL, 0, 100);
+		index.expire(200);
+		index.remove("arm");
+		index.remove("leg");
+		assertEquals(initial, index.getNodeCount());
+
+		index.remove("shared");
+		assertEquals(initial, index.getNodeCount());
+	}
+
+	@Test
+	public void testConcurrentExpire() throws InterruptedException {
+		ResourceIndex index = new ResourceIndex();
+		int rounds = 20000;
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread updater = new Thread(() -> {
+			try {
+				for (int i = 0; i < rounds; i++) {
+					index.add("a" + i, Arrays.asList("/a/sub/" + i % 10), NORMAL, i, i + 5);
+					if (i >= 5) {
+						index.remove("a" + (i - 5));
+					}
+				}
+			} catch (Throwable t) {
+				error.set(t);
+			}
+		});
+		Thread expirer = new Thread(() -> {
+			try {
+				for (int i = 0; i < rounds; i++) {
+					index.add("b" + i, Arrays.asList("/b/sub/" + i % 10), NORMAL, i, i + 5);
+					index.expire(i);
+				}
+			} catch (Throwable t) {
+				error.set(t);
+			}
+		});
+		updater.start();
+		expirer.start();
+		updater.join();
+		expirer.join();
+		assertEquals(null, error.get());
+
+		for (int i = rounds - 5; i < rounds; i++) {
+			assertTrue(index.getConflicting(Arrays.asList("/a/")).contains("a" + i));
+		}
+		assertEquals(5, index.getConflicting(Arrays.asList("/a/")).size());
+
+		index.expire(rounds + 5);
+		for (int i = rounds - 5; i < rounds; i++) {
+			index.remove("a" + i);
+		}
+		assertEquals(Collections.emptySet(), index.getConflicting(Arrays.asList("/")));
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class ResourceLocksTest {
+
+	@Test
+	public void testStripe() {
+		assertEquals(-1, ResourceLocks.getStripe("/robot"));
+		assertEquals(-1, ResourceLocks.getStripe("some-res"));
+		assertEquals(-1, ResourceLocks.getStripe("/"));
+		assertTrue(ResourceLocks.getStripe("/robot/") >= 0);
+		assertEquals(ResourceLocks.getStripe("/robot/"), ResourceLocks.getStripe("/robot/arm"));
+		assertEquals(ResourceLocks.getStripe("/robot/"), ResourceLocks.getStripe("robot/arm/left"));
+	}
+
+	@Test
+	public void testCovers() {
+		ResourceLocks locks = new ResourceLocks();
+		ResourceLocks.Held held = locks.acquire(Arrays.asList("/robot/arm"));
+		try {
+			assertTrue(held.covers(Arrays.asList("/robot/")));
+			assertTrue(held.covers(Arrays.asList("/robot/leg", "/robot/arm/left")));
+			assertFalse(held.covers(Arrays.asList("/robot")));
+			assertFalse(held.covers(Arrays.asList("some-res")));
+		} finally {
+			held.release();
+		}
+
+		held = locks.acquire(Arrays.asList("/robot/arm", "some-res"));
+		try {
+			assertTrue(held.covers(Arrays.asList("/robot")));
+			assertTrue(held.covers(Arrays.asList("/speaker/", "other")));
+		} finally {
+			held.release();
+		}
+	}
+
+	@Test
+	public void testExclusiveWhileStriped() {
+		ResourceLocks locks = new ResourceLocks();
+		ResourceLocks.Held held = locks.acquire(Arrays.asList("/robot/"));
+		try {
+			locks.acquire(Arrays.asList("/robot"));
+			fail("acquired exclusive lock while holding a stripe");
+		} catch (IllegalStateException ex) {
+		} finally {
+			held.release();
+		}
+
+		held = locks.acquire(Arrays.asList("/robot"));
+		try {
+			ResourceLocks.Held nested = locks.acquire(Arrays.asList("/robot/", "/robot"));
+			nested.release();
+		} finally {
+			held.release();
+		}
+	}
+}
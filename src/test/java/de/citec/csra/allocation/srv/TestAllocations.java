@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Bielefeld University, Patrick Holthaus
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.citec.csra.allocation.srv;
+
+import static de.citec.csra.rst.util.IntervalUtils.buildRelativeRst;
+import java.util.Arrays;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import rsb.Factory;
+import rsb.config.ParticipantConfig;
+import rsb.config.TransportConfig;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Initiator.SYSTEM;
+import static rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Policy.MAXIMUM;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.Priority;
+import rst.communicationpatterns.ResourceAllocationType.ResourceAllocation.State;
+import rst.timing.IntervalType.Interval;
+import rst.timing.TimestampType.Timestamp;
+
+/**
+ * Builds allocation messages for tests. Allocations are initiated by the
+ * system with policy <code>MAXIMUM</code> and a slot of one second starting
+ * now, unless changed on the returned builder.
+ *
+ * @author Patrick Holthaus
+ * (<a href=mailto:patrick.holthaus@uni-bielefeld.de>patrick.holthaus@uni-bielefeld.de</a>)
+ */
+public class TestAllocations {
+
+	public static ResourceAllocation.Builder allocation(String id, State state, Priority priority, String... resources) {
+		return ResourceAllocation.newBuilder().
+				setId(id).setState(state).setPolicy(MAXIMUM).
+				setPriority(priority).setInitiator(SYSTEM).setSlot(buildRelativeRst(0, 1000, MILLISECONDS)).
+				addAllResourceIds(Arrays.asList(resources));
+	}
+
+	public static Interval interval(long begin, long end) {
+		return Interval.newBuilder()
+				.setBegin(Timestamp.newBuilder().setTime(begin).build())
+				.setEnd(Timestamp.newBuilder().setTime(end).build())
+				.build();
+	}
+
+	/**
+	 * Restricts RSB to in-process communication.
+	 */
+	public static void initTransport() {
+		ParticipantConfig cfg = Factory.getInstance().getDefaultParticipantConfig();
+		for (TransportConfig t : cfg.getTransports().values()) {
+			t.setEnabled(t.getName().equalsIgnoreCase("INPROCESS"));
+		}
+		Factory.getInstance().setDefaultParticipantConfig(cfg);
+	}
+}